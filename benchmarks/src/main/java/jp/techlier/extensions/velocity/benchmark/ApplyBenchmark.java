@@ -0,0 +1,135 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Deep #apply inheritance, a scaled-up version of <code>examples/block-example-extend.vm</code>.
+ * <p>
+ * <code>level0.vm</code> declares the blocks, every fourth of them with a nested block.
+ * Each <code>level<i>n</i>.vm</code> applies <code>level<i>n-1</i>.vm</code> and
+ * overrides, prepends or appends three of every four blocks.
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApplyBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int depth;
+
+    @Param({"8", "64"})
+    public int blocks;
+
+    @Param({"false", "true"})
+    public boolean lateRendering;
+
+    private TemplateFixture fixture_;
+    private Template template_;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture_ = new TemplateFixture();
+        fixture_.write("apply/level0.vm", baseTemplate(blocks));
+        for (int level = 1; level <= depth; level++) {
+            fixture_.write("apply/level" + level + ".vm", applyingTemplate(level, blocks));
+        }
+        fixture_.init(lateRendering);
+        template_ = fixture_.getTemplate("apply/level" + depth + ".vm");
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture_.dispose();
+    }
+
+    @Benchmark
+    public String render() throws Exception {
+        final VelocityContext context = new VelocityContext();
+        context.put("value", "value");
+        return TemplateFixture.merge(template_, context);
+    }
+
+
+    static String baseTemplate(final int blocks) {
+        final StringBuilder template = new StringBuilder();
+        template.append("-- level0.vm --\n");
+        for (int b = 0; b < blocks; b++) {
+            template.append("#block('block").append(b).append("')\n");
+            template.append("block").append(b).append("@level0: $value\n");
+            if (b % 4 == 0) {
+                template.append("#block('block").append(b).append("-inner')\n");
+                template.append("> block").append(b).append("-inner@level0: $value\n");
+                template.append("#end\n");
+            }
+            template.append("#end\n");
+        }
+        return template.toString();
+    }
+
+    static String applyingTemplate(final int level, final int blocks) {
+        final StringBuilder template = new StringBuilder();
+        template.append("-- level").append(level).append(".vm --\n");
+        template.append("#apply('level").append(level - 1).append(".vm')\n");
+        for (int b = 0; b < blocks; b++) {
+            final String directive;
+            switch ((b + level) % 4) {
+            case 0:  directive = "block";   break;
+            case 1:  directive = "prepend"; break;
+            case 2:  directive = "append";  break;
+            default: continue;
+            }
+            template.append('#').append(directive).append("('block").append(b).append("')\n");
+            template.append("block").append(b).append('@').append(directive)
+                    .append("@level").append(level).append(": $value\n");
+            template.append("#end\n");
+            if (b % 4 == 0 && level % 2 == 0) {
+                template.append("#block('block").append(b).append("-inner')\n");
+                template.append("> block").append(b).append("-inner@level").append(level).append(": $value\n");
+                template.append("#end\n");
+            }
+        }
+        template.append("#end\n");
+        return template.toString();
+    }
+
+}
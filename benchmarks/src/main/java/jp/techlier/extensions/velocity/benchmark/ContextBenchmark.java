@@ -0,0 +1,133 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * #defvar, #defconst and #unset on large, chained contexts.
+ * <p>
+ * Each template runs its directive {@link #LOOP} times in a #foreach.
+ * The context of every invocation is chained to a shared context holding
+ * <code>contextSize</code> entries.
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextBenchmark {
+
+    static final int LOOP = 100;
+
+    @Param({"16", "1024", "65536"})
+    public int contextSize;
+
+    private TemplateFixture fixture_;
+    private VelocityContext sharedContext_;
+    private Template defvarDefined_;
+    private Template defvarUndefined_;
+    private Template defconst_;
+    private Template unset_;
+    private Template unsetDeep_;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture_ = new TemplateFixture();
+        fixture_.write("context/defvar-defined.vm",
+                       "#foreach($i in $loop)#defvar($key0, $i)$key0#end");
+        fixture_.write("context/defvar-undefined.vm",
+                       "#foreach($i in $loop)#defvar($tmp, $i)$tmp#unset($tmp)#end");
+        fixture_.write("context/defconst.vm",
+                       "#defconst($CONST, 'constant')#foreach($i in $loop)#set($CONST = $i)$CONST#end");
+        fixture_.write("context/unset.vm",
+                       "#foreach($i in $loop)#set($tmp = $i)#unset($tmp)#end");
+        fixture_.write("context/unset-deep.vm",
+                       "#foreach($i in $loop)#set($tmp = $i)#unset($tmp, true)#end");
+        fixture_.init(false);
+        defvarDefined_ = fixture_.getTemplate("context/defvar-defined.vm");
+        defvarUndefined_ = fixture_.getTemplate("context/defvar-undefined.vm");
+        defconst_ = fixture_.getTemplate("context/defconst.vm");
+        unset_ = fixture_.getTemplate("context/unset.vm");
+        unsetDeep_ = fixture_.getTemplate("context/unset-deep.vm");
+
+        sharedContext_ = new VelocityContext();
+        for (int k = 0; k < contextSize; k++) {
+            sharedContext_.put("key" + k, "value" + k);
+        }
+        final List<Integer> loop = new ArrayList<Integer>(LOOP);
+        for (int i = 0; i < LOOP; i++) {
+            loop.add(i);
+        }
+        sharedContext_.put("loop", loop);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture_.dispose();
+    }
+
+    @Benchmark
+    public String defvarDefined() throws Exception {
+        return TemplateFixture.merge(defvarDefined_, new VelocityContext(sharedContext_));
+    }
+
+    @Benchmark
+    public String defvarUndefined() throws Exception {
+        return TemplateFixture.merge(defvarUndefined_, new VelocityContext(sharedContext_));
+    }
+
+    @Benchmark
+    public String defconst() throws Exception {
+        return TemplateFixture.merge(defconst_, new VelocityContext(sharedContext_));
+    }
+
+    @Benchmark
+    public String unset() throws Exception {
+        return TemplateFixture.merge(unset_, new VelocityContext(sharedContext_));
+    }
+
+    @Benchmark
+    public String unsetDeep() throws Exception {
+        return TemplateFixture.merge(unsetDeep_, new VelocityContext(sharedContext_));
+    }
+
+}
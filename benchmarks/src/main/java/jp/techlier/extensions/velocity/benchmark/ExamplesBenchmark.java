@@ -0,0 +1,86 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Renders the example templates of the library tests as they are.
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExamplesBenchmark {
+
+    @Param({
+        "append-example.vm",
+        "apply-example.vm",
+        "block-example-extend.vm",
+        "defconst-example.vm",
+        "defvar-example.vm",
+        "nil-example.vm",
+        "prepend-example.vm",
+    })
+    public String example;
+
+    @Param({"false", "true"})
+    public boolean lateRendering;
+
+    private TemplateFixture fixture_;
+    private Template template_;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture_ = new TemplateFixture();
+        fixture_.init(lateRendering);
+        template_ = fixture_.getTemplate("examples/" + example);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture_.dispose();
+    }
+
+    @Benchmark
+    public String render() throws Exception {
+        return TemplateFixture.merge(template_, new VelocityContext());
+    }
+
+}
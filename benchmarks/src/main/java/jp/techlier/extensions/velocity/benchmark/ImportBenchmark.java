@@ -0,0 +1,117 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * #import and #displace with relative paths.
+ * <p>
+ * A page in <code>import/pages/</code> includes every partial in <code>import/partials/</code>
+ * through <code>../partials/</code>, and each partial imports <code>common/footer.vm</code>
+ * relative to itself.
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ImportBenchmark {
+
+    @Param({"8", "64"})
+    public int partials;
+
+    private TemplateFixture fixture_;
+    private Template import_;
+    private Template displaceExisting_;
+    private Template displaceMissing_;
+
+    @Setup
+    public void setUp() throws Exception {
+        fixture_ = new TemplateFixture();
+        final StringBuilder importPage = new StringBuilder();
+        final StringBuilder displaceExistingPage = new StringBuilder();
+        final StringBuilder displaceMissingPage = new StringBuilder();
+        for (int k = 0; k < partials; k++) {
+            fixture_.write("import/partials/partial" + k + ".vm",
+                           "partial " + k + ": $value\n#import('common/footer.vm')\n");
+            importPage.append("#import('../partials/partial").append(k).append(".vm')\n");
+            displaceExistingPage.append("#displace('../partials/partial").append(k).append(".vm')\n")
+                                .append("fallback ").append(k).append("\n#end\n");
+            displaceMissingPage.append("#displace('../missing/partial").append(k).append(".vm')\n")
+                               .append("fallback ").append(k).append("\n#end\n");
+        }
+        fixture_.write("import/partials/common/footer.vm", "-- footer --\n");
+        fixture_.write("import/pages/import.vm", importPage);
+        fixture_.write("import/pages/displace-existing.vm", displaceExistingPage);
+        fixture_.write("import/pages/displace-missing.vm", displaceMissingPage);
+
+        fixture_.init(false);
+        import_ = fixture_.getTemplate("import/pages/import.vm");
+        displaceExisting_ = fixture_.getTemplate("import/pages/displace-existing.vm");
+        displaceMissing_ = fixture_.getTemplate("import/pages/displace-missing.vm");
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture_.dispose();
+    }
+
+    private VelocityContext newContext() {
+        final VelocityContext context = new VelocityContext();
+        context.put("value", "value");
+        return context;
+    }
+
+    @Benchmark
+    public String importRelative() throws Exception {
+        return TemplateFixture.merge(import_, newContext());
+    }
+
+    @Benchmark
+    public String displaceExisting() throws Exception {
+        return TemplateFixture.merge(displaceExisting_, newContext());
+    }
+
+    @Benchmark
+    public String displaceMissing() throws Exception {
+        return TemplateFixture.merge(displaceMissing_, newContext());
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Directives that control output: #nil, #nop and #cache.
+ * <p>
+ * <code>plain</code> renders the same loop without any directive as the baseline.
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputBenchmark {
+
+    @Param({"10", "1000"})
+    public int loop;
+
+    private TemplateFixture fixture_;
+    private List<Integer> list_;
+    private Template plain_;
+    private Template nil_;
+    private Template nop_;
+    private Template cache_;
+    private Template cacheWithReferenceKey_;
+
+    @Setup
+    public void setUp() throws Exception {
+        final String body = "#foreach($i in $loop)#set($var = $i)text $var\n#end";
+        fixture_ = new TemplateFixture();
+        fixture_.write("output/plain.vm", body + "$var");
+        fixture_.write("output/nil.vm", "#nil()" + body + "#end$var");
+        fixture_.write("output/nop.vm", "#foreach($i in $loop)#nop()text $i\n#end");
+        fixture_.write("output/cache.vm", "#cache('fragment', 0)" + body + "#end");
+        fixture_.write("output/cache-reference-key.vm", "#cache(\"fragment-$key\", 0)" + body + "#end");
+        fixture_.init(false);
+        plain_ = fixture_.getTemplate("output/plain.vm");
+        nil_ = fixture_.getTemplate("output/nil.vm");
+        nop_ = fixture_.getTemplate("output/nop.vm");
+        cache_ = fixture_.getTemplate("output/cache.vm");
+        cacheWithReferenceKey_ = fixture_.getTemplate("output/cache-reference-key.vm");
+
+        list_ = new ArrayList<Integer>(loop);
+        for (int i = 0; i < loop; i++) {
+            list_.add(i);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        fixture_.dispose();
+    }
+
+    private VelocityContext newContext() {
+        final VelocityContext context = new VelocityContext();
+        context.put("loop", list_);
+        context.put("key", "key");
+        return context;
+    }
+
+    @Benchmark
+    public String plain() throws Exception {
+        return TemplateFixture.merge(plain_, newContext());
+    }
+
+    @Benchmark
+    public String nil() throws Exception {
+        return TemplateFixture.merge(nil_, newContext());
+    }
+
+    @Benchmark
+    public String nop() throws Exception {
+        return TemplateFixture.merge(nop_, newContext());
+    }
+
+    @Benchmark
+    public String cache() throws Exception {
+        return TemplateFixture.merge(cache_, newContext());
+    }
+
+    @Benchmark
+    public String cacheWithReferenceKey() throws Exception {
+        return TemplateFixture.merge(cacheWithReferenceKey_, newContext());
+    }
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.log.NullLogChute;
+
+import jp.techlier.extensions.velocity.directive.DirectiveConstants;
+import jp.techlier.extensions.velocity.directive.DirectiveUtils;
+
+
+/**
+ * Template directory and engine shared by the benchmarks.
+ * <p>
+ * The example templates of the library tests are copied from the classpath,
+ * and the scaled-up templates are generated deterministically,
+ * into a temporary directory served by the file resource loader.
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+public class TemplateFixture {
+
+    public static final String ENCODING = "UTF-8";
+
+    static final String[] EXAMPLE_TEMPLATES = {
+        "append-example.vm",
+        "apply-example-base.vm",
+        "apply-example.vm",
+        "base.vm",
+        "block-example-base.vm",
+        "block-example-extend.vm",
+        "defconst-example.vm",
+        "defvar-example.vm",
+        "nil-example.vm",
+        "prepend-example.vm",
+    };
+
+    private final File dir_;
+    private VelocityEngine engine_;
+
+    public TemplateFixture() throws IOException {
+        dir_ = File.createTempFile("veloext-benchmark", "");
+        if (!dir_.delete() || !dir_.mkdirs()) {
+            throw new IOException("could not create " + dir_);
+        }
+        for (final String name: EXAMPLE_TEMPLATES) {
+            copyExample(name);
+        }
+    }
+
+    private void copyExample(final String name) throws IOException {
+        final InputStream in = getClass().getResourceAsStream("/templates/examples/" + name);
+        if (in == null) {
+            throw new IOException("example template not found: " + name);
+        }
+        try {
+            final File file = file("examples/" + name);
+            final OutputStream out = new FileOutputStream(file); try {
+                final byte[] buf = new byte[4096];
+                int len;
+                while ((len = in.read(buf)) > 0) {
+                    out.write(buf, 0, len);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private File file(final String name) {
+        final File file = new File(dir_, name);
+        file.getParentFile().mkdirs();
+        return file;
+    }
+
+    /**
+     * Write a template under the fixture directory.
+     * @param name template name relative to the fixture directory
+     * @param content template content
+     * @return this fixture
+     */
+    public TemplateFixture write(final String name, final CharSequence content) throws IOException {
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file(name)), ENCODING); try {
+            writer.append(content);
+        } finally {
+            writer.close();
+        }
+        return this;
+    }
+
+    /**
+     * Create the template engine. Templates must be written before this call.
+     * @param lateRendering value of <code>directive.block.late.rendering</code>
+     * @return the initialized engine
+     */
+    public VelocityEngine init(final boolean lateRendering) throws Exception {
+        engine_ = new VelocityEngine();
+        engine_.setProperty(RuntimeConstants.INPUT_ENCODING, ENCODING);
+        engine_.setProperty(RuntimeConstants.OUTPUT_ENCODING, ENCODING);
+        engine_.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, NullLogChute.class.getName());
+        engine_.setProperty(RuntimeConstants.RESOURCE_LOADER, "file");
+        engine_.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH, dir_.getAbsolutePath());
+        engine_.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_CACHE, "true");
+        engine_.setProperty("file.resource.loader.modificationCheckInterval", "0");
+        engine_.setProperty(DirectiveConstants.BLOCK_LATE_RENDERING, lateRendering);
+        DirectiveUtils.addUserDirectives(engine_);
+        engine_.init();
+        return engine_;
+    }
+
+    public Template getTemplate(final String name) throws Exception {
+        return engine_.getTemplate(name, ENCODING);
+    }
+
+    public static String merge(final Template template, final Context context) throws Exception {
+        final StringWriter writer = new StringWriter(1024);
+        template.merge(context, writer);
+        return writer.toString();
+    }
+
+    /**
+     * Remove the fixture directory.
+     */
+    public void dispose() {
+        delete(dir_);
+    }
+
+    private static void delete(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child: children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -19,15 +19,24 @@ package jp.techlier.extensions.velocity.directive;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
+import org.apache.velocity.Template;
 import org.apache.velocity.context.InternalContextAdapter;
 import org.apache.velocity.exception.MethodInvocationException;
 import org.apache.velocity.exception.ParseErrorException;
 import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
 import org.apache.velocity.runtime.parser.node.Node;
 
 import jp.techlier.extensions.velocity.directive.Nil.NilWriter;
 
+import static jp.techlier.extensions.velocity.directive.DirectiveConstants.*;
+
 
 /**
  * Pluggable directive that handles the <code>#apply()</code> statement.
@@ -65,6 +74,10 @@ import jp.techlier.extensions.velocity.directive.Nil.NilWriter;
  * オリジナルのブロック2
  * </pre>
  *　</p>
+ * <p>
+ * #apply ~ #endの内側では、テキストとメソッド呼び出しを含まない参照は評価されない。
+ * #block/#prepend/#append、#setや#defvarなどのディレクティブと、メソッド呼び出しを含む参照のみが評価される。
+ * </p>
  *
  * @author <a href="mailto:okamura@techlier.jp">Kazuhide 'Kz' Okamura</a>
  * @since 1.0
@@ -87,25 +100,141 @@ public class Apply extends Import {
         return BLOCK;
     }
 
+    /**
+     * #apply ~ #endの内容がリテラル名の#block/#prepend/#appendのみで構成される場合の、
+     * それらのブロック定義。それ以外の場合はnull。
+     */
+    private List<ASTDirective> blockDefinitions_;
+
+    /** #apply ~ #endの内容のうち、評価が必要なノード。 */
+    private Node[] effectiveNodes_;
+
+    /**
+     * directive.block.late.rendering = true の場合に、blockDefinitions_から生成したblock table。
+     * <p>
+     * late renderingではblock chainはNodeのみを保持するため、描画ごとに同一となる。
+     * このdirectiveのインスタンスはテンプレートのパース結果に属するため、
+     * テンプレートが再読み込みされると新しいインスタンスとともに破棄される。
+     * </p>
+     */
+    private volatile BlockTable blockTableCache_;
+
+    private DeclaredBlocks declaredBlocks_;
+    private BlockTable.Slots slots_;
+
     /*(non-Javadoc)
-     * @see org.apache.velocity.runtime.directive.Directive#render(org.apache.velocity.context.InternalContextAdapter, java.io.Writer, org.apache.velocity.runtime.parser.node.Node)
+     * @see org.apache.velocity.runtime.directive.Directive#init(org.apache.velocity.runtime.RuntimeServices, org.apache.velocity.context.InternalContextAdapter, org.apache.velocity.runtime.parser.node.Node)
      */
     @Override
-    public boolean render(final InternalContextAdapter context,
-                          final Writer writer,
-                          final Node node)
+    public void init(final RuntimeServices rs, final InternalContextAdapter context, final Node node)
+            throws TemplateInitException {
+        super.init(rs, context, node);
+
+        declaredBlocks_ = DeclaredBlocks.getInstance(rsvc);
+        slots_ = BlockTable.Slots.getInstance(rsvc);
+        effectiveNodes_ = collectEffectiveNodes(node.jjtGetChild(1));
+        blockDefinitions_ = collectBlockDefinitions(effectiveNodes_);
+    }
+
+    /**
+     * #apply ~ #endの内容をblock chainに登録してから、適用先のテンプレートを描画する。
+     * <p>
+     * directive.block.late.rendering = false の場合、
+     * 適用先のテンプレートで宣言されていないblockの内容は評価しない。
+     * </p>
+     */
+    @Override
+    protected void renderTemplate(final InternalContextAdapter context,
+                                  final Writer writer,
+                                  final Node node,
+                                  final Template template)
+            throws IOException, ResourceNotFoundException,
+                   ParseErrorException, MethodInvocationException {
+        if (!rsvc.getBoolean(BLOCK_LATE_RENDERING, DEFAULT_BLOCK_LATE_RENDERING)) {
+            final BitSet declaredSlots =
+                declaredBlocks_.getDeclaredSlots(template, getInputEncoding(context));
+            renderEffectiveNodes(context, new ApplyWriter(declaredSlots));
+        }
+        else if (blockDefinitions_ != null) {
+            Block.getBlockTable(slots_, context).merge(getBlockTableCache());
+        }
+        else {
+            renderEffectiveNodes(context, new ApplyWriter(null));
+        }
+        super.renderTemplate(context, writer, node, template);
+    }
+
+    private void renderEffectiveNodes(final InternalContextAdapter context, final ApplyWriter writer)
             throws IOException, ResourceNotFoundException,
                    ParseErrorException, MethodInvocationException {
-        if (!context.getAllowRendering()) {
-            return true;
+        for (final Node child: effectiveNodes_) {
+            child.render(context, writer);
         }
+    }
 
-        node.jjtGetChild(1).render(context, new ApplyWriter());
-        return super.render(context, writer, node);
+    /**
+     * 出力が破棄されるだけのテキスト、コメント、メソッド呼び出しを含まない参照を除いたノードを返す。
+     * @see Nil#hasSideEffects(Node)
+     */
+    private Node[] collectEffectiveNodes(final Node body) {
+        final List<Node> nodes = new ArrayList<Node>();
+        for (int i = 0; i < body.jjtGetNumChildren(); i++) {
+            final Node child = body.jjtGetChild(i);
+            if (Nil.hasSideEffects(child)) {
+                nodes.add(child);
+            }
+        }
+        return nodes.toArray(new Node[nodes.size()]);
+    }
+
+    private List<ASTDirective> collectBlockDefinitions(final Node[] nodes) {
+        final List<ASTDirective> definitions = new ArrayList<ASTDirective>();
+        for (final Node child: nodes) {
+            if (child instanceof ASTDirective
+                    && rsvc.getDirective(((ASTDirective)child).getDirectiveName()) instanceof Block
+                    && DirectiveHelper.literalValue(helper_.getChildNode(child, 0)) != null) {
+                definitions.add((ASTDirective)child);
+            }
+            else {
+                return null;
+            }
+        }
+        return definitions;
+    }
+
+    private BlockTable getBlockTableCache() {
+        BlockTable blockTable = blockTableCache_;
+        if (blockTable == null) {
+            blockTable = new BlockTable(slots_);
+            for (final ASTDirective definition: blockDefinitions_) {
+                final String blockName = DirectiveHelper.literalValue(definition.jjtGetChild(0));
+                final BlockChain blockChain = blockTable.get(slots_.slotOf(blockName), blockName);
+                if (blockChain.hasBaseBlock()) {
+                    final Block block = (Block)rsvc.getDirective(definition.getDirectiveName());
+                    block.insertBlock(blockChain, new EncodedText(rsvc, definition.jjtGetChild(1)));
+                }
+            }
+            blockTableCache_ = blockTable;
+        }
+        return blockTable;
     }
 
     static class ApplyWriter extends NilWriter {
-        // nothing
+        private final BitSet declaredSlots_;
+
+        /**
+         * @param declaredSlots 適用先のテンプレートで宣言されたblockのスロット番号。不明な場合はnull。
+         */
+        ApplyWriter(final BitSet declaredSlots) {
+            declaredSlots_ = declaredSlots;
+        }
+
+        /**
+         * @param slot スロット番号。-1の場合は、適用先のテンプレートでリテラルで宣言されていないblock名。
+         */
+        boolean isDeclared(final int slot) {
+            return declaredSlots_ == null || (slot >= 0 && declaredSlots_.get(slot));
+        }
     }
 
 }
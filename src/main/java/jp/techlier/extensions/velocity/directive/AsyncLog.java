@@ -0,0 +1,204 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.log.Log;
+
+import static jp.techlier.extensions.velocity.directive.DirectiveConstants.*;
+
+
+/**
+ * 警告とエラーを、描画スレッドとは別のスレッドでログに出力する。
+ * <p>
+ * 出力待ちのメッセージは固定長のリングバッファに保持し、描画スレッドがログ出力を待つことはない。
+ * バッファが一杯の場合は、最も古いメッセージを破棄する。
+ * メッセージの整形も出力スレッドで行う。
+ * 出力スレッドはテンプレートエンジンごとに1つ起動し、{@link #stop()}で終了する。
+ * 終了後のメッセージは描画スレッドで出力する。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+final class AsyncLog implements Runnable {
+
+    /**
+     * @param rsvc {@link RuntimeServices}
+     * @return テンプレートエンジンに対応するログ出力。非同期出力が無効な場合はnull。
+     */
+    static AsyncLog getInstance(final RuntimeServices rsvc) {
+        if (!rsvc.getBoolean(LOG_ASYNC, DEFAULT_LOG_ASYNC)) {
+            return null;
+        }
+        synchronized (rsvc) {
+            AsyncLog log = (AsyncLog)rsvc.getApplicationAttribute(AsyncLog.class.getName());
+            if (log == null) {
+                log = new AsyncLog(rsvc.getLog(), rsvc.getInt(LOG_ASYNC_BUFFER_SIZE, DEFAULT_LOG_ASYNC_BUFFER_SIZE));
+                rsvc.setApplicationAttribute(AsyncLog.class.getName(), log);
+            }
+            return log;
+        }
+    }
+
+
+    private static final int WARN = 0;
+    private static final int ERROR = 1;
+
+    private final Log log_;
+    private final int[] levels_;
+    private final DirectiveHelper[] helpers_;
+    private final String[] messages_;
+    private final Throwable[] causes_;
+    /** 次に出力するメッセージの通し番号 */
+    private long head_;
+    /** 次に書き込むメッセージの通し番号 */
+    private long tail_;
+    private long dropped_;
+    private boolean writing_;
+    private boolean stopped_;
+    private final Thread thread_;
+
+    private AsyncLog(final Log log, final int capacity) {
+        log_ = log;
+        levels_ = new int[capacity];
+        helpers_ = new DirectiveHelper[capacity];
+        messages_ = new String[capacity];
+        causes_ = new Throwable[capacity];
+
+        thread_ = new Thread(this, "veloext-log");
+        thread_.setDaemon(true);
+        thread_.start();
+    }
+
+    void warn(final DirectiveHelper helper, final String message) {
+        if (!offer(WARN, helper, message, null)) {
+            write(WARN, helper.formatMessage(message), null);
+        }
+    }
+
+    void error(final DirectiveHelper helper, final String message, final Throwable cause) {
+        if (!offer(ERROR, helper, message, cause)) {
+            write(ERROR, helper.formatMessage(message), cause);
+        }
+    }
+
+    /**
+     * @return 出力スレッドが終了している場合はfalse
+     */
+    private synchronized boolean offer(final int level, final DirectiveHelper helper,
+                                       final String message, final Throwable cause) {
+        if (stopped_) {
+            return false;
+        }
+        if (tail_ - head_ == levels_.length) {
+            head_++;
+            dropped_++;
+        }
+        final int index = (int)(tail_++ % levels_.length);
+        levels_[index] = level;
+        helpers_[index] = helper;
+        messages_[index] = message;
+        causes_[index] = cause;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * 出力待ちのメッセージがなくなるまで待つ。
+     */
+    synchronized void flush() throws InterruptedException {
+        while (head_ < tail_ || writing_) {
+            wait();
+        }
+    }
+
+    /**
+     * 出力待ちのメッセージを出力してから、出力スレッドを終了する。
+     */
+    void stop() throws InterruptedException {
+        synchronized (this) {
+            stopped_ = true;
+            notifyAll();
+        }
+        thread_.join();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final int level;
+            final DirectiveHelper helper;
+            final String message;
+            final Throwable cause;
+            final long dropped;
+            synchronized (this) {
+                writing_ = false;
+                notifyAll();
+                while (head_ == tail_) {
+                    if (stopped_) {
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // 以後のメッセージは描画スレッドで出力させる
+                        stopped_ = true;
+                        notifyAll();
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                final int index = (int)(head_++ % levels_.length);
+                level = levels_[index];
+                helper = helpers_[index];
+                message = messages_[index];
+                cause = causes_[index];
+                helpers_[index] = null;
+                messages_[index] = null;
+                causes_[index] = null;
+                dropped = dropped_;
+                dropped_ = 0;
+                writing_ = true;
+            }
+            try {
+                if (dropped > 0) {
+                    log_.warn("AsyncLog: " + dropped + " message(s) dropped because the buffer was full");
+                }
+                write(level, helper.formatMessage(message), cause);
+            } catch (RuntimeException e) {
+                // never let the log thread die
+            }
+        }
+    }
+
+    private void write(final int level, final String message, final Throwable cause) {
+        if (level == ERROR) {
+            if (cause == null) {
+                log_.error(message);
+            }
+            else {
+                log_.error(message, cause);
+            }
+        }
+        else {
+            log_.warn(message);
+        }
+    }
+
+}
@@ -18,12 +18,7 @@
 package jp.techlier.extensions.velocity.directive;
 
 import java.io.IOException;
-import java.io.StringWriter;
 import java.io.Writer;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 
 import org.apache.velocity.context.InternalContextAdapter;
 import org.apache.velocity.exception.MethodInvocationException;
@@ -35,6 +30,7 @@ import org.apache.velocity.runtime.directive.Directive;
 import org.apache.velocity.runtime.parser.node.Node;
 
 import jp.techlier.extensions.velocity.directive.Apply.ApplyWriter;
+import jp.techlier.extensions.velocity.util.ByteBufferWriter;
 
 import static jp.techlier.extensions.velocity.directive.DirectiveConstants.*;
 
@@ -157,6 +153,17 @@ public class Block extends Directive {
 
     protected DirectiveHelper helper_;
 
+    /** リテラルで指定されたblock名。それ以外の場合はnull。 */
+    private String blockName_;
+    private int slot_ = -1;
+    private BlockTable.Slots slots_;
+
+    /** ブロックの内容。テキストはエンコード済みのバイト列として保持する。 */
+    private EncodedText body_;
+
+    /** 前回描画時のブロックの大きさ(文字数)。バッファの初期サイズとして用いる。 */
+    private volatile int blockSize_ = BlockWriter.MIN_CHUNK_SIZE;
+
     /*(non-Javadoc)
      * @see org.apache.velocity.runtime.directive.Directive#init(org.apache.velocity.runtime.RuntimeServices, org.apache.velocity.context.InternalContextAdapter, org.apache.velocity.runtime.parser.node.Node)
      */
@@ -170,6 +177,14 @@ public class Block extends Directive {
             throw helper_.newTemplateInitException(node, "requires exactly one argument.");
         }
         helper_.checkArgumentMustBeString(0);
+
+        slots_ = BlockTable.Slots.getInstance(rsvc);
+        blockName_ = helper_.getLiteralArgument(0);
+        if (blockName_ != null) {
+            slot_ = slots_.slotOf(blockName_);
+        }
+        body_ = new EncodedText(rsvc, node.jjtGetChild(1));
+        DirectiveMetrics.attach(rsvc, this, node);
     }
 
     /*(non-Javadoc)
@@ -181,29 +196,28 @@ public class Block extends Directive {
                           final Node node)
             throws IOException, ResourceNotFoundException,
                    ParseErrorException, MethodInvocationException {
-        final List<Object> blockChain = getBlockChain(context, node);
+        final BlockChain blockChain = getBlockChain(context, node);
         if (blockChain == null) return false;
 
         boolean result = true;
         if (writer instanceof ApplyWriter) { // inside apply derective
-            if (blockChain.contains(BASEBLOCK_RENDERING_POSITION_MARKER)) {
-                final Object blockObject = parseBlock(context, node.jjtGetChild(1));
-                if (blockObject != null) {
-                    blockChain.set(blockChain.indexOf(BASEBLOCK_RENDERING_POSITION_MARKER), blockObject);
-                }
-                else {
-                    result = false;
-                }
-            }
+            result = defineBlock(context, (ApplyWriter)writer, node, blockChain);
         }
         else {
-            for (final Object blockObject: blockChain) {
+            for (int i = 0; i < blockChain.size(); i++) {
+                final Object blockObject = blockChain.get(i);
                 if (blockObject == BASEBLOCK_RENDERING_POSITION_MARKER) {
-                    result &= node.jjtGetChild(1).render(context, writer);
+                    result &= body_.render(context, writer);
+                }
+                else if (blockObject instanceof EncodedText) {
+                    result &= ((EncodedText)blockObject).render(context, writer);
                 }
                 else if (blockObject instanceof Node) {
                     result &= ((Node)blockObject).render(context, writer);
                 }
+                else if (blockObject instanceof BlockWriter) {
+                    ((BlockWriter)blockObject).writeTo(writer);
+                }
                 else {
                     writer.write(blockObject.toString());
                 }
@@ -211,47 +225,92 @@ public class Block extends Directive {
                     break;
                 }
             }
+            if (writer instanceof ByteBufferWriter) {
+                ((ByteBufferWriter)writer).checkpoint();
+            }
         }
         return result;
     }
 
+    /**
+     * #apply ~ #end の内側で、ブロックの内容をblock chainに登録する。
+     * 適用先のテンプレートで宣言されていないblockは、内容を評価せずに無視する。
+     * @return false if rendering of the block failed.
+     */
+    protected boolean defineBlock(final InternalContextAdapter context,
+                                  final ApplyWriter writer,
+                                  final Node node,
+                                  final BlockChain blockChain)
+            throws MethodInvocationException, ParseErrorException,
+                   ResourceNotFoundException, IOException {
+        if (blockChain.hasBaseBlock()) {
+            if (!writer.isDeclared(blockChain.slot())) {
+                if (rsvc.getBoolean(BLOCK_WARN_UNDECLARED, DEFAULT_BLOCK_WARN_UNDECLARED)) {
+                    helper_.warn("'" + (blockName_ != null ? blockName_ : helper_.getStringArgument(context, 0))
+                                 + "' is not declared in the applied template");
+                }
+                return true;
+            }
+            final Object blockObject = parseBlock(context, node.jjtGetChild(1));
+            if (blockObject == null) {
+                return false;
+            }
+            insertBlock(blockChain, blockObject);
+        }
+        return true;
+    }
+
+    /**
+     * blockObjectを、block chain中のベースブロックの位置に配置する。
+     * 呼び出し時点でblock chainはベースブロックを含んでいること。
+     */
+    protected void insertBlock(final BlockChain blockChain, final Object blockObject) {
+        blockChain.replaceBaseBlock(blockObject);
+    }
+
+    /**
+     * @return ブロックの内容。テキストのみで構成されるブロックは、描画せずに{@link EncodedText}を返す。
+     */
     protected Object parseBlock(final InternalContextAdapter context, final Node blockNode)
             throws MethodInvocationException, ParseErrorException,
                    ResourceNotFoundException, IOException {
         final boolean renderingLater = rsvc.getBoolean(BLOCK_LATE_RENDERING, DEFAULT_BLOCK_LATE_RENDERING);
+        final EncodedText body = body_.getNode() == blockNode ? body_ : null;
         if (renderingLater) {
-            return blockNode;
+            return body != null ? body : blockNode;
+        }
+        else if (body != null && body.isLiteralOnly()) {
+            return body;
         }
         else {
-            final StringWriter blockWriter = new StringWriter();
+            final BlockWriter blockWriter = new BlockWriter(blockSize_);
             if (!blockNode.render(context, blockWriter)) {
                 return null;
             }
-            return blockWriter.toString();
+            blockSize_ = blockWriter.length();
+            return blockWriter;
         }
     }
 
-    protected List<Object> getBlockChain(final InternalContextAdapter context, final Node node) {
-        final String blockName = helper_.getStringArgument(0);
+    protected BlockChain getBlockChain(final InternalContextAdapter context, final Node node) {
+        final String blockName = blockName_ != null ? blockName_ : helper_.getStringArgument(context, 0);
         if (blockName == null) {
             helper_.error("blockname must not be null.");
             return null;
         }
         helper_.debug(blockName);
 
-        @SuppressWarnings("unchecked")
-        Map<String,List<Object>> blockRefs = (Map<String,List<Object>>)context.get(Block.class.getName());
-        if (blockRefs == null) {
-            context.put(Block.class.getName(), blockRefs = new HashMap<String,List<Object>>());
-        }
+        final BlockTable blockTable = getBlockTable(slots_, context);
+        return slot_ >= 0 ? blockTable.get(slot_, blockName) : blockTable.get(blockName);
+    }
 
-        List<Object> blockChain = blockRefs.get(blockName);
-        if (blockChain == null || blockChain.isEmpty()) {
-            blockChain = new ArrayList<Object>();
-            blockChain.add(BASEBLOCK_RENDERING_POSITION_MARKER);
-            blockRefs.put(blockName, blockChain);
+    static BlockTable getBlockTable(final BlockTable.Slots slots, final InternalContextAdapter context) {
+        BlockTable blockTable = (BlockTable)context.get(Block.class.getName());
+        if (blockTable == null) {
+            // #scopeなど、内側のcontextに置くと描画の途中で破棄されるため、基底のcontextに置く
+            context.getBaseContext().put(Block.class.getName(), blockTable = new BlockTable(slots));
         }
-        return blockChain;
+        return blockTable;
     }
 
     protected static final Object BASEBLOCK_RENDERING_POSITION_MARKER = new Object();
@@ -0,0 +1,100 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static jp.techlier.extensions.velocity.directive.Block.BASEBLOCK_RENDERING_POSITION_MARKER;
+
+
+/**
+ * ひとつのblockで描画される内容の並び。
+ * <p>
+ * 上書きされていないベースブロックの位置はBASEBLOCK_RENDERING_POSITION_MARKERで表し、
+ * その位置を直接保持する。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+final class BlockChain {
+
+    /** スロット番号。スロット番号が登録されていないblock名の場合は-1。 */
+    private int slot_;
+    private final List<Object> blocks_ = new ArrayList<Object>(2);
+    private int basePosition_;
+
+    BlockChain(final int slot) {
+        slot_ = slot;
+        blocks_.add(BASEBLOCK_RENDERING_POSITION_MARKER);
+        basePosition_ = 0;
+    }
+
+
+    int slot() {
+        return slot_;
+    }
+
+    void assignSlot(final int slot) {
+        slot_ = slot;
+    }
+
+    int size() {
+        return blocks_.size();
+    }
+
+    Object get(final int index) {
+        return blocks_.get(index);
+    }
+
+    boolean hasBaseBlock() {
+        return basePosition_ >= 0;
+    }
+
+    /**
+     * @return ベースブロック以外の内容を含む場合はtrue
+     */
+    boolean isOverridden() {
+        return basePosition_ != 0 || blocks_.size() != 1;
+    }
+
+
+    void replaceBaseBlock(final Object blockObject) {
+        blocks_.set(basePosition_, blockObject);
+        basePosition_ = -1;
+    }
+
+    void insertBeforeBaseBlock(final Object blockObject) {
+        blocks_.add(basePosition_++, blockObject);
+    }
+
+    void insertAfterBaseBlock(final Object blockObject) {
+        blocks_.add(basePosition_ + 1, blockObject);
+    }
+
+    /**
+     * ベースブロックの位置に、指定されたblock chainの内容を展開する。
+     */
+    void replaceBaseBlock(final BlockChain blockChain) {
+        blocks_.remove(basePosition_);
+        blocks_.addAll(basePosition_, blockChain.blocks_);
+        basePosition_ = blockChain.hasBaseBlock() ? basePosition_ + blockChain.basePosition_ : -1;
+    }
+
+}
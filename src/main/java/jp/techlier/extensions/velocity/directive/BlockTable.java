@@ -0,0 +1,206 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.velocity.runtime.RuntimeServices;
+
+
+/**
+ * block名ごとのblock chainを、スロット番号で引くテーブル。
+ * <p>
+ * リテラルで指定されたblock名は、テンプレートエンジンごとの{@link Slots}でスロット番号に変換し、
+ * #block()の初期化時に変換しておく。
+ * 描画時に参照などで指定されたblock名のうち、スロット番号が登録されていないものは、
+ * スロット番号を登録せずにblock名で引く。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+final class BlockTable {
+
+    /**
+     * テンプレートエンジンごとの、リテラルで指定されたblock名とスロット番号の対応。
+     * <p>
+     * テンプレート中にリテラルで記述されたblock名のみを登録するため、テンプレートの数に応じた大きさに留まる。
+     * </p>
+     */
+    static final class Slots {
+
+        /**
+         * @param rsvc {@link RuntimeServices}
+         * @return テンプレートエンジンに対応するインスタンス
+         */
+        static Slots getInstance(final RuntimeServices rsvc) {
+            synchronized (rsvc) {
+                Slots slots = (Slots)rsvc.getApplicationAttribute(Slots.class.getName());
+                if (slots == null) {
+                    slots = new Slots();
+                    rsvc.setApplicationAttribute(Slots.class.getName(), slots);
+                }
+                return slots;
+            }
+        }
+
+        private final ConcurrentMap<String,Integer> slots_ = new ConcurrentHashMap<String,Integer>();
+
+        private Slots() {
+        }
+
+        /**
+         * @param blockName リテラルで指定されたblock名
+         * @return block名に対応するスロット番号。未登録の場合は登録する。
+         */
+        int slotOf(final String blockName) {
+            Integer slot = slots_.get(blockName);
+            if (slot == null) {
+                synchronized (this) {
+                    slot = slots_.get(blockName);
+                    if (slot == null) {
+                        slots_.put(blockName, slot = slots_.size());
+                    }
+                }
+            }
+            return slot;
+        }
+
+        /**
+         * @param blockName block名
+         * @return block名に対応するスロット番号。未登録の場合は-1。
+         */
+        int find(final String blockName) {
+            final Integer slot = slots_.get(blockName);
+            return slot != null ? slot : -1;
+        }
+
+        int size() {
+            return slots_.size();
+        }
+    }
+
+
+    private final Slots slots_;
+    private BlockChain[] chains_;
+    /** スロット番号が登録されていないblock名のblock chain。ない場合はnull。 */
+    private Map<String,BlockChain> namedChains_;
+
+    BlockTable(final Slots slots) {
+        slots_ = slots;
+        chains_ = new BlockChain[slots.size()];
+    }
+
+    /**
+     * @param blockName block名
+     * @return block名のblock chain。未登録の場合はベースブロックのみのblock chainを登録して返す。
+     */
+    BlockChain get(final String blockName) {
+        return get(slots_.find(blockName), blockName);
+    }
+
+    /**
+     * @param slot スロット番号。未登録のblock名の場合は-1。
+     * @param blockName block名
+     * @return block名のblock chain。未登録の場合はベースブロックのみのblock chainを登録して返す。
+     */
+    BlockChain get(final int slot, final String blockName) {
+        if (slot < 0) {
+            if (namedChains_ == null) {
+                namedChains_ = new HashMap<String,BlockChain>();
+            }
+            BlockChain blockChain = namedChains_.get(blockName);
+            if (blockChain == null) {
+                namedChains_.put(blockName, blockChain = new BlockChain(-1));
+            }
+            return blockChain;
+        }
+        if (slot >= chains_.length) {
+            chains_ = Arrays.copyOf(chains_, Math.max(slot + 1, slots_.size()));
+        }
+        BlockChain blockChain = chains_[slot];
+        if (blockChain == null) {
+            // 描画の途中でスロット番号が登録された場合は、block名で登録したblock chainを引き継ぐ
+            blockChain = namedChains_ != null ? namedChains_.remove(blockName) : null;
+            if (blockChain != null) {
+                blockChain.assignSlot(slot);
+            }
+            else {
+                blockChain = new BlockChain(slot);
+            }
+            chains_[slot] = blockChain;
+        }
+        return blockChain;
+    }
+
+    /**
+     * @param slot スロット番号
+     * @return スロットのblock chainがベースブロック以外の内容を含む場合はtrue
+     */
+    boolean isOverridden(final int slot) {
+        return slot < chains_.length && chains_[slot] != null && chains_[slot].isOverridden();
+    }
+
+    /**
+     * @return ベースブロック以外の内容を含むblock chainがある場合はtrue
+     */
+    boolean hasOverrides() {
+        for (final BlockChain blockChain: chains_) {
+            if (blockChain != null && blockChain.isOverridden()) {
+                return true;
+            }
+        }
+        if (namedChains_ != null) {
+            for (final BlockChain blockChain: namedChains_.values()) {
+                if (blockChain.isOverridden()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 指定されたテーブルのblock chainを、このテーブルのベースブロックの位置に展開する。
+     * 両テーブルは同じテンプレートエンジンのものであること。
+     */
+    void merge(final BlockTable blockTable) {
+        final BlockChain[] chains = blockTable.chains_;
+        for (int slot = 0; slot < chains.length; slot++) {
+            if (chains[slot] != null) {
+                merge(get(slot, null), chains[slot]);
+            }
+        }
+        if (blockTable.namedChains_ != null) {
+            for (final Map.Entry<String,BlockChain> entry: blockTable.namedChains_.entrySet()) {
+                merge(get(entry.getKey()), entry.getValue());
+            }
+        }
+    }
+
+    private static void merge(final BlockChain blockChain, final BlockChain source) {
+        if (blockChain.hasBaseBlock()) {
+            blockChain.replaceBaseBlock(source);
+        }
+    }
+
+}
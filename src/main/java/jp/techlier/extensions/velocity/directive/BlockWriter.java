@@ -0,0 +1,140 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * 描画済みの#blockの内容を保持するWriter。
+ * <p>
+ * 内容をchar配列の列として保持し、拡張時の複写やtoString()を経由せずに
+ * {@link #writeTo(Writer)}で出力先へ直接書き出す。
+ * StringWriterと異なり、同期化は行わない。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+final class BlockWriter extends Writer {
+
+    static final int MIN_CHUNK_SIZE = 256;
+    static final int MAX_CHUNK_SIZE = 32 * 1024;
+
+    private final List<char[]> chunks_ = new ArrayList<char[]>(1);
+    private char[] chunk_;
+    private int position_;
+    private int length_;
+
+    /**
+     * @param sizeHint 最初に確保するバッファの大きさ(文字数)
+     */
+    BlockWriter(final int sizeHint) {
+        chunk_ = new char[Math.max(sizeHint, MIN_CHUNK_SIZE)];
+        chunks_.add(chunk_);
+    }
+
+
+    @Override
+    public void write(final int c) {
+        if (position_ == chunk_.length) {
+            nextChunk();
+        }
+        chunk_[position_++] = (char)c;
+        length_++;
+    }
+
+    @Override
+    public void write(final char[] cbuf, int off, int len) {
+        length_ += len;
+        while (len > 0) {
+            if (position_ == chunk_.length) {
+                nextChunk();
+            }
+            final int n = Math.min(len, chunk_.length - position_);
+            System.arraycopy(cbuf, off, chunk_, position_, n);
+            position_ += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(final String str, int off, int len) {
+        length_ += len;
+        while (len > 0) {
+            if (position_ == chunk_.length) {
+                nextChunk();
+            }
+            final int n = Math.min(len, chunk_.length - position_);
+            str.getChars(off, off + n, chunk_, position_);
+            position_ += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void write(final String str) {
+        write(str, 0, str.length());
+    }
+
+    @Override public void flush() { /* nothing */ }
+    @Override public void close() { /* nothing */ }
+
+
+    private void nextChunk() {
+        chunk_ = new char[Math.min(chunk_.length * 2, MAX_CHUNK_SIZE)];
+        chunks_.add(chunk_);
+        position_ = 0;
+    }
+
+    /**
+     * @return 書き込まれた文字数
+     */
+    int length() {
+        return length_;
+    }
+
+    /**
+     * 保持している内容を出力先へ書き出す。
+     */
+    void writeTo(final Writer writer) throws IOException {
+        final int last = chunks_.size() - 1;
+        for (int i = 0; i < last; i++) {
+            final char[] chunk = chunks_.get(i);
+            writer.write(chunk, 0, chunk.length);
+        }
+        writer.write(chunk_, 0, position_);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder buf = new StringBuilder(length_);
+        final int last = chunks_.size() - 1;
+        for (int i = 0; i < last; i++) {
+            buf.append(chunks_.get(i));
+        }
+        buf.append(chunk_, 0, position_);
+        return buf.toString();
+    }
+
+}
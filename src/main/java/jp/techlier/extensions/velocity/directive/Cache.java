@@ -0,0 +1,232 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.directive.Directive;
+import org.apache.velocity.runtime.directive.Evaluate;
+import org.apache.velocity.runtime.directive.Parse;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.Node;
+
+import jp.techlier.extensions.velocity.directive.Apply.ApplyWriter;
+
+
+
+/**
+ * Pluggable directive that handles the <code>#cache()</code> statement.
+ * <p>
+ * #cache ~ #endで囲まれた部分の描画結果を、指定されたキーでキャッシュする。
+ * キャッシュはテンプレートエンジンごとに共有され、有効期間(秒)が過ぎるまで再利用される。
+ * 有効期間に0以下を指定した場合は、期限なしとなる。
+ * </p>
+ * <p>
+ * #apply ~ #endの内側では、内容に含まれる#blockを登録するため、キャッシュせずに評価する。
+ * 内容に含まれる#blockが#applyで上書きされている場合も、上書きの内容はページごとに異なるため、キャッシュせずに評価する。
+ * 内容に名前を静的に決定できない#blockや、#import/#parse/マクロ呼び出しを含む場合は、
+ * いずれかのblockが上書きされていればキャッシュしない。
+ * </p>
+ * <p>
+ * 同じキーの#cacheの内側や、他のスレッドの描画を<code>directive.cache.wait.timeout</code>ミリ秒待っても
+ * 完了しなかった場合も、キャッシュせずに評価する。
+ * </p>
+ * <p>
+ * <b>記述例）</b>
+ * <pre>
+ * template...
+ * #cache("navigation-$user.role", 60)
+ * #foreach($item in $menu.items)
+ * &lt;li&gt;$item.label&lt;/li&gt;
+ * #end
+ * #end
+ * </pre>
+ *　</p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ * @see FragmentCache
+ */
+public class Cache extends Directive {
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.runtime.directive.Directive#getName()
+     */
+    @Override
+    public String getName() {
+        return "cache";
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.runtime.directive.Directive#getType()
+     */
+    @Override
+    public int getType() {
+        return BLOCK;
+    }
+
+
+    protected DirectiveHelper helper_;
+
+    private FragmentCache cache_;
+
+    /** 内容に含まれる、リテラル名の#blockのスロット番号 */
+    private int[] blockSlots_;
+    /** 内容に、名前を静的に決定できない#block、または#blockを含みうる読み込みがある場合はtrue */
+    private boolean mayContainBlocks_;
+
+    /** 前回描画時の内容の大きさ(文字数)。バッファの初期サイズとして用いる。 */
+    private volatile int contentSize_ = BlockWriter.MIN_CHUNK_SIZE;
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.runtime.directive.Directive#init(org.apache.velocity.runtime.RuntimeServices, org.apache.velocity.context.InternalContextAdapter, org.apache.velocity.runtime.parser.node.Node)
+     */
+    @Override
+    public void init(final RuntimeServices rs, final InternalContextAdapter context, final Node node)
+            throws TemplateInitException {
+        super.init(rs, context, node);
+
+        helper_ = new DirectiveHelper(this, rsvc, context, node);
+        if (node.jjtGetNumChildren() != 3) {
+            throw helper_.newTemplateInitException(node, "requires exactly two arguments.");
+        }
+        helper_.checkArgumentMustBeString(0);
+        cache_ = FragmentCache.getInstance(rsvc);
+
+        final List<Integer> blockSlots = new ArrayList<Integer>();
+        scanBlocks(node.jjtGetChild(2), BlockTable.Slots.getInstance(rsvc), blockSlots);
+        blockSlots_ = new int[blockSlots.size()];
+        for (int i = 0; i < blockSlots_.length; i++) {
+            blockSlots_[i] = blockSlots.get(i);
+        }
+        DirectiveMetrics.attach(rsvc, this, node);
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.runtime.directive.Directive#render(org.apache.velocity.context.InternalContextAdapter, java.io.Writer, org.apache.velocity.runtime.parser.node.Node)
+     */
+    @Override
+    public boolean render(final InternalContextAdapter context,
+                          final Writer writer,
+                          final Node node)
+            throws IOException, ResourceNotFoundException,
+                   ParseErrorException, MethodInvocationException {
+        final Node body = node.jjtGetChild(2);
+        if (writer instanceof ApplyWriter) { // inside apply derective
+            return body.render(context, writer);
+        }
+
+        if (isOverridden(context)) {
+            return body.render(context, writer);
+        }
+
+        final String key = helper_.getStringArgument(context, 0);
+        if (key == null) {
+            helper_.error("key must not be null.");
+            return body.render(context, writer);
+        }
+
+        String content;
+        try {
+            content = cache_.acquire(key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return body.render(context, writer);
+        }
+        if (content == FragmentCache.UNCACHED) {
+            return body.render(context, writer);
+        }
+        if (content != null) {
+            writer.write(content);
+            return true;
+        }
+
+        boolean cached = false;
+        try {
+            final BlockWriter blockWriter = new BlockWriter(contentSize_);
+            if (!body.render(context, blockWriter)) {
+                return false;
+            }
+            contentSize_ = blockWriter.length();
+            content = blockWriter.toString();
+            cache_.put(key, content, helper_.getIntArgument(context, 1, 0) * 1000L);
+            cached = true;
+        } finally {
+            if (!cached) {
+                cache_.abort(key);
+            }
+        }
+        writer.write(content);
+        return true;
+    }
+
+    private void scanBlocks(final Node node, final BlockTable.Slots slots, final List<Integer> blockSlots) {
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            final Node child = node.jjtGetChild(i);
+            if (child instanceof ASTDirective) {
+                final Directive directive = rsvc.getDirective(((ASTDirective)child).getDirectiveName());
+                if (directive == null || directive instanceof Import
+                        || directive instanceof Parse || directive instanceof Evaluate) {
+                    mayContainBlocks_ = true;
+                }
+                else if (directive instanceof Block) {
+                    final String blockName = DirectiveHelper.literalValue(child.jjtGetChild(0));
+                    if (blockName == null) {
+                        mayContainBlocks_ = true;
+                    }
+                    else {
+                        blockSlots.add(slots.slotOf(blockName));
+                    }
+                }
+            }
+            scanBlocks(child, slots, blockSlots);
+        }
+    }
+
+    /**
+     * @return 内容に含まれる#blockが上書きされている場合はtrue
+     */
+    private boolean isOverridden(final InternalContextAdapter context) {
+        if (blockSlots_.length == 0 && !mayContainBlocks_) {
+            return false;
+        }
+        final BlockTable blockTable = (BlockTable)context.get(Block.class.getName());
+        if (blockTable == null) {
+            return false;
+        }
+        if (mayContainBlocks_) {
+            return blockTable.hasOverrides();
+        }
+        for (final int slot: blockSlots_) {
+            if (blockTable.isOverridden(slot)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
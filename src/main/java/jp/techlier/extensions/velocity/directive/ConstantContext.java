@@ -0,0 +1,125 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.context.Context;
+
+
+/**
+ * #defconst()で定義された定数を保持できるcontext。
+ * <p>
+ * 定数の値は通常の変数と同じく保持されるため、参照の速度は{@link VelocityContext}と変わらない。
+ * 定数の名前は別の表で管理され、代入と削除の際にのみ確認される。
+ * テンプレートに渡すcontextとしてこのクラスを用いると、#defconst()はreflectionを用いずに定数を定義し、
+ * 定義された定数はcontextを再利用する限り有効となる。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+public class ConstantContext extends VelocityContext implements Defconst.Constants {
+
+    /** 定数の名前。定数が定義されるまではnull。 */
+    private Set<String> constants_;
+
+    public ConstantContext() {
+        super();
+    }
+
+    @SuppressWarnings("rawtypes")
+    public ConstantContext(final Map context) {
+        super(context);
+    }
+
+    public ConstantContext(final Context innerContext) {
+        super(innerContext);
+    }
+
+    @SuppressWarnings("rawtypes")
+    public ConstantContext(final Map context, final Context innerContext) {
+        super(context, innerContext);
+    }
+
+
+    /**
+     * 定数を定義する。
+     * @param key 名前
+     * @param value 値
+     * @return 定義できた場合はtrue。既に同じ名前の定数が定義されている場合はfalse。
+     */
+    @Override
+    public boolean defineConstant(final String key, final Object value) {
+        if (isConstant(key)) {
+            return false;
+        }
+        super.internalPut(key, value);
+        if (constants_ == null) {
+            constants_ = new HashSet<String>();
+        }
+        constants_.add(key);
+        return true;
+    }
+
+    /**
+     * @param key 名前
+     * @return 定数として定義されている場合はtrue
+     */
+    public boolean isConstant(final Object key) {
+        return constants_ != null && constants_.contains(key);
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.VelocityContext#clone()
+     */
+    @Override
+    public Object clone() {
+        final ConstantContext clone = (ConstantContext)super.clone();
+        if (constants_ != null) {
+            clone.constants_ = new HashSet<String>(constants_);
+        }
+        return clone;
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.VelocityContext#internalPut(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public Object internalPut(final String key, final Object value) {
+        if (isConstant(key)) {
+            return null;
+        }
+        return super.internalPut(key, value);
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.VelocityContext#internalRemove(java.lang.Object)
+     */
+    @Override
+    public Object internalRemove(final Object key) {
+        if (isConstant(key)) {
+            return null;
+        }
+        return super.internalRemove(key);
+    }
+
+}
@@ -0,0 +1,238 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.directive.Directive;
+import org.apache.velocity.runtime.directive.Evaluate;
+import org.apache.velocity.runtime.directive.Parse;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.Node;
+
+
+/**
+ * テンプレート内で宣言されている#blockのスロット番号の集合を、テンプレートエンジンごとに保持する。
+ * <p>
+ * テンプレートのパース結果ごとに一度だけ走査する。
+ * #import/#displace/#applyで読み込まれるテンプレートは、リテラルで指定されている場合に限り
+ * {@link #getDeclaredSlots}で再帰的に集計する。
+ * 読み込み先を静的に決定できない場合(参照による指定、#parse、#evaluate、マクロ呼び出し)には、
+ * 宣言されたblockの集合は不明とする。
+ * </p>
+ * <p>
+ * 集計結果は、集計に用いたテンプレートとともに保持する。
+ * 読み込まれるテンプレートは{@link TemplateResolver}から取得し、
+ * いずれかが再読み込みされていた場合に限り集計し直す。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+final class DeclaredBlocks {
+
+    /**
+     * @param rsvc {@link RuntimeServices}
+     * @return テンプレートエンジンに対応するインスタンス
+     */
+    static DeclaredBlocks getInstance(final RuntimeServices rsvc) {
+        synchronized (rsvc) {
+            DeclaredBlocks declaredBlocks = (DeclaredBlocks)rsvc.getApplicationAttribute(DeclaredBlocks.class.getName());
+            if (declaredBlocks == null) {
+                declaredBlocks = new DeclaredBlocks(rsvc);
+                rsvc.setApplicationAttribute(DeclaredBlocks.class.getName(), declaredBlocks);
+            }
+            return declaredBlocks;
+        }
+    }
+
+
+    /**
+     * ひとつのテンプレートの走査結果。
+     */
+    private static final class Scan {
+        final WeakReference<Template> template_;
+        final BitSet slots_ = new BitSet();
+        /** リテラルで指定された読み込み先(#import等の引数そのまま) */
+        final List<String> imports_ = new ArrayList<String>();
+        boolean complete_ = true;
+        /** 読み込まれるテンプレートを含めた集計結果。未集計の場合はnull。 */
+        volatile Combined combined_;
+
+        Scan(final Template template) {
+            template_ = new WeakReference<Template>(template);
+        }
+    }
+
+    /**
+     * 読み込まれるテンプレートを含めた集計結果。
+     */
+    private static final class Combined {
+        final String encoding_;
+        /** 宣言されたblockのスロット番号の集合。不明な場合はnull。 */
+        final BitSet slots_;
+        /** 集計に用いた、読み込まれるテンプレートへの参照と、その時点のテンプレート */
+        final TemplateResolver.Handle[] handles_;
+        final Template[] templates_;
+
+        Combined(final String encoding, final BitSet slots,
+                 final List<TemplateResolver.Handle> handles, final List<Template> templates) {
+            encoding_ = encoding;
+            slots_ = slots;
+            handles_ = handles.toArray(new TemplateResolver.Handle[handles.size()]);
+            templates_ = templates.toArray(new Template[templates.size()]);
+        }
+
+        boolean isValid(final String encoding) {
+            if (!encoding_.equals(encoding)) {
+                return false;
+            }
+            for (int i = 0; i < handles_.length; i++) {
+                try {
+                    if (handles_[i].getTemplate(encoding) != templates_[i]) {
+                        return false;
+                    }
+                } catch (Exception e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+
+    private final RuntimeServices rsvc_;
+    private final TemplateResolver resolver_;
+    private final BlockTable.Slots slots_;
+    /** テンプレート名ごとの、最後に走査したテンプレートの走査結果 */
+    private final ConcurrentMap<String,Scan> scans_ = new ConcurrentHashMap<String,Scan>();
+
+    private DeclaredBlocks(final RuntimeServices rsvc) {
+        rsvc_ = rsvc;
+        resolver_ = TemplateResolver.getInstance(rsvc);
+        slots_ = BlockTable.Slots.getInstance(rsvc);
+    }
+
+    /**
+     * @param template 走査するテンプレート
+     * @param encoding 読み込まれるテンプレートのエンコーディング
+     * @return 宣言されたblockのスロット番号の集合。不明な場合はnull。変更しないこと。
+     */
+    BitSet getDeclaredSlots(final Template template, final String encoding) {
+        final Scan scan = scanOf(template);
+        if (!scan.complete_) {
+            return null;
+        }
+        if (scan.imports_.isEmpty()) {
+            return scan.slots_;
+        }
+        Combined combined = scan.combined_;
+        if (combined == null || !combined.isValid(encoding)) {
+            final BitSet slots = new BitSet();
+            final List<TemplateResolver.Handle> handles = new ArrayList<TemplateResolver.Handle>();
+            final List<Template> templates = new ArrayList<Template>();
+            final boolean complete =
+                collect(template, scan, encoding, slots, new HashSet<String>(), handles, templates);
+            combined = new Combined(encoding, complete ? slots : null, handles, templates);
+            scan.combined_ = combined;
+        }
+        return combined.slots_;
+    }
+
+    private boolean collect(final Template template,
+                            final Scan scan,
+                            final String encoding,
+                            final BitSet slots,
+                            final Set<String> visited,
+                            final List<TemplateResolver.Handle> handles,
+                            final List<Template> templates) {
+        if (!visited.add(template.getName())) {
+            return true;
+        }
+        if (!scan.complete_) {
+            return false;
+        }
+        slots.or(scan.slots_);
+        for (final String importingName: scan.imports_) {
+            final TemplateResolver.Handle handle = resolver_.resolve(template.getName(), importingName);
+            final Template importingTemplate;
+            try {
+                importingTemplate = handle.getTemplate(encoding);
+            } catch (Exception e) {
+                return false;
+            }
+            handles.add(handle);
+            templates.add(importingTemplate);
+            if (!collect(importingTemplate, scanOf(importingTemplate), encoding, slots, visited, handles, templates)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Scan scanOf(final Template template) {
+        Scan scan = scans_.get(template.getName());
+        if (scan == null || scan.template_.get() != template) {
+            scan = new Scan(template);
+            scan(scan, (Node)template.getData());
+            scans_.put(template.getName(), scan);
+        }
+        return scan;
+    }
+
+    private void scan(final Scan scan, final Node node) {
+        for (int i = 0; i < node.jjtGetNumChildren() && scan.complete_; i++) {
+            final Node child = node.jjtGetChild(i);
+            if (child instanceof ASTDirective) {
+                final Directive directive = rsvc_.getDirective(((ASTDirective)child).getDirectiveName());
+                if (directive == null || directive instanceof Parse || directive instanceof Evaluate) {
+                    scan.complete_ = false;
+                }
+                else if (directive instanceof Block) {
+                    final String blockName = DirectiveHelper.literalValue(child.jjtGetChild(0));
+                    if (blockName == null) {
+                        scan.complete_ = false;
+                    }
+                    else if (!(directive instanceof Prepend || directive instanceof Append)) {
+                        scan.slots_.set(slots_.slotOf(blockName));
+                    }
+                }
+                else if (directive instanceof Import) {
+                    final String importingName = DirectiveHelper.literalValue(child.jjtGetChild(0));
+                    if (importingName == null) {
+                        scan.complete_ = false;
+                    }
+                    else {
+                        scan.imports_.add(importingName);
+                    }
+                }
+            }
+            scan(scan, child);
+        }
+    }
+
+}
@@ -18,6 +18,8 @@
 package jp.techlier.extensions.velocity.directive;
 
 import java.io.Writer;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.apache.velocity.context.Context;
 import org.apache.velocity.context.InternalContextAdapter;
@@ -33,6 +35,12 @@ import jp.techlier.extensions.velocity.util.ReflectUtils;
  * <p>
  * 代入不可能な定数値を定義する。
  * </p>
+ * <p>
+ * テンプレートに渡すcontextが{@link ConstantContext}の場合は、そのcontextに定数を定義する。
+ * それ以外の場合は、最初の#defconst()の描画時に定数を管理するcontextを差し込み、
+ * 定数はそのテンプレートの描画中のみ有効となる。
+ * いずれの場合も、定数の値は通常の変数と同じく保持される。
+ * </p>
  *　<p>
  * <b>記述例）</b>
  * <pre>
@@ -69,9 +77,15 @@ public class Defconst extends Defvar {
                           final Node node) {
         final String referenceName = helper_.getReferenceName(node.jjtGetChild(0));
         if (context.get(referenceName) == null) {
-            attachContextValueHandlingContext(context);
-            context.put(referenceName,
-                        new ConstantValue(node.jjtGetChild(1).value(context)));
+            final Object value = node.jjtGetChild(1).value(context);
+            final Constants constants = getConstants(context);
+            if (constants != null) {
+                constants.defineConstant(referenceName, value);
+            }
+            else {
+                helper_.warn("cannot define constant in this context: " + referenceName);
+                context.put(referenceName, value);
+            }
         }
         return true;
     }
@@ -79,51 +93,80 @@ public class Defconst extends Defvar {
 
     /**
      * @param context
+     * @return 定数を定義するcontext。定義できない場合はnull。
      */
-    private void attachContextValueHandlingContext(final InternalContextAdapter context) {
-        if (context == null) return;
+    private Constants getConstants(final InternalContextAdapter context) {
+        final Context userContext = context.getInternalUserContext();
+        if (userContext instanceof Constants) {
+            return (Constants)userContext;
+        }
+        return attachConstantHandlingContext(context);
+    }
+
+    /**
+     * @param context
+     * @return 差し込まれたcontext。差し込めない場合はnull。
+     */
+    private Constants attachConstantHandlingContext(final InternalContextAdapter context) {
+        if (context == null) return null;
         if (context instanceof InternalContextAdapterImpl) {
             Object obj = ReflectUtils.get(context, "context");
-            if (!(obj instanceof ConstantValueHandlingContext)) {
-                ReflectUtils.set(context, "context",
-                                 new ConstantValueHandlingContext(rsvc, (Context)obj));
+            if (!(obj instanceof ConstantHandlingContext)) {
+                obj = new ConstantHandlingContext(rsvc, (Context)obj);
+                ReflectUtils.set(context, "context", obj);
             }
+            return (Constants)obj;
         }
         else if (context != context.getBaseContext()) {
-            attachContextValueHandlingContext(context.getBaseContext());
+            return attachConstantHandlingContext(context.getBaseContext());
         }
+        return null;
     }
 
 
-    private static class ConstantValue {
-        final Object value_;
-
-        public ConstantValue(final Object value) {
-            value_ = value;
-        }
-
-        @Override
-        public String toString() {
-            return value_.toString();
-        }
+    /**
+     * 定数を定義できるcontext。
+     */
+    interface Constants {
+        /**
+         * @param key 名前
+         * @param value 値
+         * @return 定義できた場合はtrue。既に同じ名前の定数が定義されている場合はfalse。
+         */
+        boolean defineConstant(String key, Object value);
     }
 
-    private static class ConstantValueHandlingContext implements Context {
+    private static class ConstantHandlingContext implements Context, Constants {
         private final RuntimeServices runtimeServices_;
         private final Context context_;
+        private final Set<String> constants_ = new HashSet<String>();
 
-        ConstantValueHandlingContext(RuntimeServices runtimeServices, Context context) {
+        ConstantHandlingContext(RuntimeServices runtimeServices, Context context) {
             this.runtimeServices_ = runtimeServices;
             this.context_ = context;
         }
 
+        /*(non-Javadoc)
+         * @see jp.techlier.extensions.velocity.directive.Defconst.Constants#defineConstant(java.lang.String, java.lang.Object)
+         */
+        @Override
+        public boolean defineConstant(String key, Object value) {
+            if (!constants_.add(key)) {
+                return false;
+            }
+            context_.put(key, value);
+            return true;
+        }
+
         /*(non-Javadoc)
          * @see org.apache.velocity.context.Context#put(java.lang.String, java.lang.Object)
          */
         @Override
         public Object put(String key, Object value) {
-            if (context_.get(key) instanceof ConstantValue) {
-                runtimeServices_.getLog().debug("cannot overwrite constant value: " + key);
+            if (constants_.contains(key)) {
+                if (runtimeServices_.getLog().isDebugEnabled()) {
+                    runtimeServices_.getLog().debug("cannot overwrite constant value: " + key);
+                }
                 return null;
             }
             return context_.put(key, value);
@@ -134,11 +177,7 @@ public class Defconst extends Defvar {
          */
         @Override
         public Object get(String key) {
-            Object value = context_.get(key);
-            if (value instanceof ConstantValue) {
-                value = ((ConstantValue)value).value_;
-            }
-            return value;
+            return context_.get(key);
         }
 
         /*(non-Javadoc)
@@ -162,8 +201,10 @@ public class Defconst extends Defvar {
          */
         @Override
         public Object remove(Object key) {
-            if (context_.get(key.toString()) instanceof ConstantValue) {
-                runtimeServices_.getLog().debug("cannot remove constant value: " + key);
+            if (constants_.contains(key)) {
+                if (runtimeServices_.getLog().isDebugEnabled()) {
+                    runtimeServices_.getLog().debug("cannot remove constant value: " + key);
+                }
                 return null;
             }
             return context_.remove(key);
@@ -92,6 +92,7 @@ public class Defvar extends Directive {
             throw helper_.newTemplateInitException(node, "requires exactly two arguments.");
         }
         helper_.checkArgumentMustBeReference(0);
+        DirectiveMetrics.attach(rsvc, this, node);
     }
 
 
@@ -13,4 +13,30 @@ public class DirectiveConstants {
     public static final String BLOCK_LATE_RENDERING = "directive.block.late.rendering";
     static final boolean DEFAULT_BLOCK_LATE_RENDERING = false;
 
+    public static final String BLOCK_WARN_UNDECLARED = "directive.block.warn.undeclared";
+    static final boolean DEFAULT_BLOCK_WARN_UNDECLARED = false;
+
+    public static final String CACHE_MAX_SIZE = "directive.cache.max.size";
+    static final int DEFAULT_CACHE_MAX_SIZE = 4 * 1024 * 1024;
+
+    public static final String CACHE_WAIT_TIMEOUT = "directive.cache.wait.timeout";
+    static final int DEFAULT_CACHE_WAIT_TIMEOUT = 10 * 1000;
+
+    public static final String METRICS_ENABLED = "directive.metrics.enabled";
+    static final boolean DEFAULT_METRICS_ENABLED = false;
+
+    public static final String DISPLACE_CACHE_TTL = "directive.displace.cache.ttl";
+    static final int DEFAULT_DISPLACE_CACHE_TTL = 0;
+
+    public static final String LOG_ASYNC = "directive.log.async";
+    static final boolean DEFAULT_LOG_ASYNC = false;
+
+    public static final String LOG_ASYNC_BUFFER_SIZE = "directive.log.async.buffer.size";
+    static final int DEFAULT_LOG_ASYNC_BUFFER_SIZE = 1024;
+
+    public static final String PRELOAD_THREADS = "directive.preload.threads";
+
+    public static final String PRELOAD_SUFFIX = "directive.preload.suffix";
+    static final String DEFAULT_PRELOAD_SUFFIX = ".vm";
+
 }
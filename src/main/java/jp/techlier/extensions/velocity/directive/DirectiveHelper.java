@@ -22,15 +22,21 @@ import org.apache.velocity.context.InternalContextAdapter;
 import org.apache.velocity.exception.TemplateInitException;
 import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.runtime.directive.Directive;
+import org.apache.velocity.runtime.log.Log;
 import org.apache.velocity.runtime.parser.ParserTreeConstants;
 import org.apache.velocity.runtime.parser.node.ASTDirective;
 import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.ASTStringLiteral;
 import org.apache.velocity.runtime.parser.node.Node;
 import org.apache.velocity.util.introspection.Info;
 
 
 /**
  * Helper methods for directive implementation.
+ * <p>
+ * A helper is created in {@link Directive#init} and shared by all threads rendering the parsed template.
+ * It holds no context; argument values are evaluated against the context passed to <code>render</code>.
+ * </p>
  *
  * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
  * @since 1.3
@@ -39,13 +45,21 @@ public class DirectiveHelper {
 
     private final Directive directive_;
     private final RuntimeServices runtimeServices_;
-    private final InternalContextAdapter context_;
+    /** 初期化時のテンプレート名。ディレクティブの位置の表示に用いる。 */
+    private final String templateName_;
+    /** 初期化時のcontext。非推奨のメソッドでのみ用いる。 */
+    @Deprecated
+    private final InternalContextAdapter initContext_;
     private final ASTDirective directiveNode_;
+    private final AsyncLog asyncLog_;
+    /** formatMessage()で用いる、メッセージに続く呼び出し位置。 */
+    private final String location_;
 
     /**
      * @param directive {@link Directive}
      * @param runtimeServices {@link RuntimeServices}
-     * @param context {@link InternalContextAdapter}
+     * @param context {@link InternalContextAdapter} at initialization.
+     *                Its current template name is kept, and the context itself only for the deprecated accessors.
      * @param directiveNode {@link Node}
      */
     public DirectiveHelper(final Directive directive,
@@ -54,15 +68,18 @@ public class DirectiveHelper {
                            final Node directiveNode) {
         this.directive_ = directive;
         this.runtimeServices_ = runtimeServices;
-        this.context_ = context;
+        this.templateName_ = context.getCurrentTemplateName();
+        this.initContext_ = context;
         this.directiveNode_ = (ASTDirective)directiveNode;
+        this.asyncLog_ = AsyncLog.getInstance(runtimeServices);
+        this.location_ = ", called at " + templateInfo();
     }
 
 
     public TemplateInitException newTemplateInitException(final Node node, String message) {
         error(message);
         return new TemplateInitException("#" + directive_.getName() + "() " + message,
-                                         context_.getCurrentTemplateName(),
+                                         templateName_,
                                          node.getColumn(),
                                          node.getLine());
     }
@@ -105,21 +122,62 @@ public class DirectiveHelper {
     }
 
     /**
+     * @param context {@link InternalContextAdapter} passed to <code>render</code>.
      * @param index index of argument node.
      * @return The argument value.
+     * @since 1.4
      */
+    public String getStringArgument(final InternalContextAdapter context, final int index) {
+        return stringValue(context, getChildNode(directiveNode_, index));
+    }
+
+    /**
+     * @param index index of argument node.
+     * @return The argument value, evaluated against the context at initialization.
+     * @deprecated The value does not follow the context of each render.
+     *             Use {@link #getStringArgument(InternalContextAdapter, int)}.
+     */
+    @Deprecated
     public String getStringArgument(final int index) {
-        return stringValue(getChildNode(directiveNode_, index));
+        return getStringArgument(initContext_, index);
     }
 
+    /**
+     * @deprecated The value does not follow the context of each render.
+     *             Use {@link #stringValue(InternalContextAdapter, Node)}.
+     */
+    @Deprecated
     public String stringValue(final Node node) {
+        return stringValue(initContext_, node);
+    }
+
+    public String stringValue(final InternalContextAdapter context, final Node node) {
         if (node == null ||
                 (node.getType() != ParserTreeConstants.JJTSTRINGLITERAL
                     && node.getType() != ParserTreeConstants.JJTREFERENCE)) {
             error("argument must be a literal or reference");
         }
         else {
-            final Object value = node.value(context_);
+            final Object value = node.value(context);
+            if (value != null) {
+                return value.toString();
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * @param index index of argument node.
+     * @return The argument value if it is a constant string literal, otherwise null.
+     */
+    public String getLiteralArgument(final int index) {
+        return literalValue(getChildNode(directiveNode_, index));
+    }
+
+    public static String literalValue(final Node node) {
+        if (node instanceof ASTStringLiteral && ((ASTStringLiteral)node).isConstant()) {
+            final Object value = node.value(null);
             if (value != null) {
                 return value.toString();
             }
@@ -128,13 +186,61 @@ public class DirectiveHelper {
     }
 
 
+    /**
+     * @param context {@link InternalContextAdapter} passed to <code>render</code>.
+     * @since 1.4
+     */
+    public int getIntArgument(final InternalContextAdapter context, final int index, final int defaultValue) {
+        return intValue(context, getChildNode(directiveNode_, index), defaultValue);
+    }
+
+    public int intValue(final InternalContextAdapter context, final Node node, final int defaultValue) {
+        if (node != null) {
+            final Object value = node.value(context);
+            if (value instanceof Number) {
+                return ((Number)value).intValue();
+            }
+            else if (value != null) {
+                try {
+                    return Integer.parseInt(value.toString().trim());
+                } catch (NumberFormatException e) {
+                    error("argument must be a number");
+                }
+            }
+        }
+        return defaultValue;
+    }
+
+
+    /**
+     * @param context {@link InternalContextAdapter} passed to <code>render</code>.
+     * @since 1.4
+     */
+    public boolean getBooleanArgument(final InternalContextAdapter context, final int index) {
+        return booleanValue(context, getChildNode(directiveNode_, index));
+    }
+
+    /**
+     * @deprecated The value does not follow the context of each render.
+     *             Use {@link #getBooleanArgument(InternalContextAdapter, int)}.
+     */
+    @Deprecated
     public boolean getBooleanArgument(final int index) {
-        return booleanValue(getChildNode(directiveNode_, index));
+        return getBooleanArgument(initContext_, index);
     }
 
+    /**
+     * @deprecated The value does not follow the context of each render.
+     *             Use {@link #booleanValue(InternalContextAdapter, Node)}.
+     */
+    @Deprecated
     public boolean booleanValue(final Node node) {
+        return booleanValue(initContext_, node);
+    }
+
+    public boolean booleanValue(final InternalContextAdapter context, final Node node) {
         if (node != null) {
-            final Object value = node.value(context_);
+            final Object value = node.value(context);
             if (value != null) {
                 return value.equals(Boolean.TRUE) || Boolean.parseBoolean(value.toString());
             }
@@ -159,31 +265,55 @@ public class DirectiveHelper {
      * @return Always false.
      */
     public boolean error(final String message, final Throwable cause) {
-        if (cause == null) {
-            runtimeServices_.getLog().error(formatMessage(message));
+        final Log log = runtimeServices_.getLog();
+        if (!log.isErrorEnabled()) {
+            return false;
+        }
+        if (asyncLog_ != null) {
+            asyncLog_.error(this, message, cause);
+        }
+        else if (cause == null) {
+            log.error(formatMessage(message));
         }
         else {
-            runtimeServices_.getLog().error(formatMessage(message), cause);
+            log.error(formatMessage(message), cause);
         }
         return false;
     }
 
     public boolean warn(final String message) {
-        runtimeServices_.getLog().warn(formatMessage(message));
+        final Log log = runtimeServices_.getLog();
+        if (!log.isWarnEnabled()) {
+            return false;
+        }
+        if (asyncLog_ != null) {
+            asyncLog_.warn(this, message);
+        }
+        else {
+            log.warn(formatMessage(message));
+        }
         return false;
     }
 
+    public boolean isDebugEnabled() {
+        return runtimeServices_.getLog().isDebugEnabled();
+    }
+
     public void debug(final String message) {
-        runtimeServices_.getLog().debug(formatMessage(message));
+        final Log log = runtimeServices_.getLog();
+        if (log.isDebugEnabled()) {
+            log.debug(formatMessage(message));
+        }
     }
 
     public String formatMessage(final String message) {
-        return "#" + directive_.getName() + "() " + message + ", called at " + templateInfo();
+        final String name = directive_.getName();
+        return new StringBuilder(name.length() + message.length() + location_.length() + 3)
+                .append('#').append(name).append("() ").append(message).append(location_).toString();
     }
 
     public Info templateInfo() {
-        return new Info(context_.getCurrentTemplateName(),
-                        directiveNode_.getLine(), directiveNode_.getColumn());
+        return new Info(templateName_, directiveNode_.getLine(), directiveNode_.getColumn());
     }
 
 }
@@ -0,0 +1,324 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.directive.Directive;
+import org.apache.velocity.runtime.parser.node.ASTDirective;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.util.introspection.Info;
+
+import jp.techlier.extensions.velocity.util.ReflectUtils;
+
+import static jp.techlier.extensions.velocity.directive.DirectiveConstants.*;
+
+
+/**
+ * ディレクティブの描画回数と所要時間を、テンプレート上の記述位置ごとに集計する。
+ * <p>
+ * <code>directive.metrics.enabled</code>が有効な場合のみ、テンプレートエンジンごとに生成され、
+ * <code>jp.techlier.extensions.velocity:type=DirectiveMetrics</code>の名前でMBeanとして登録される。
+ * 無効な場合は計測用のディレクティブを差し込まないため、描画時の負荷は生じない。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+public final class DirectiveMetrics implements DirectiveMetricsMBean {
+
+    public static final String OBJECT_NAME_PREFIX = "jp.techlier.extensions.velocity:type=DirectiveMetrics";
+
+    /**
+     * @param rsvc {@link RuntimeServices}
+     * @return テンプレートエンジンに対応する集計。計測が無効な場合はnull。
+     */
+    public static DirectiveMetrics getInstance(final RuntimeServices rsvc) {
+        if (!rsvc.getBoolean(METRICS_ENABLED, DEFAULT_METRICS_ENABLED)) {
+            return null;
+        }
+        synchronized (rsvc) {
+            DirectiveMetrics metrics = (DirectiveMetrics)rsvc.getApplicationAttribute(DirectiveMetrics.class.getName());
+            if (metrics == null) {
+                metrics = new DirectiveMetrics(rsvc);
+                rsvc.setApplicationAttribute(DirectiveMetrics.class.getName(), metrics);
+            }
+            return metrics;
+        }
+    }
+
+    /**
+     * 計測が有効な場合、ディレクティブのノードに計測用のディレクティブを差し込む。
+     * ディレクティブのinit()から呼び出すこと。
+     *
+     * @param rsvc {@link RuntimeServices}
+     * @param directive 初期化中のディレクティブ
+     * @param node ディレクティブのノード
+     */
+    static void attach(final RuntimeServices rsvc, final Directive directive, final Node node) {
+        final DirectiveMetrics metrics = getInstance(rsvc);
+        if (metrics != null && node instanceof ASTDirective) {
+            final Site site = metrics.getSite(directive);
+            ReflectUtils.set(ASTDirective.class, node, "directive", new MeteredDirective(directive, site));
+        }
+    }
+
+
+    private static final int BUCKETS = 40;
+
+    static final class Site {
+        final String name_;
+        final AtomicLong count_ = new AtomicLong();
+        final AtomicLong totalNanos_ = new AtomicLong();
+        final AtomicLong maxNanos_ = new AtomicLong();
+        final AtomicLongArray histogram_ = new AtomicLongArray(BUCKETS);
+
+        Site(final String name) {
+            name_ = name;
+        }
+
+        void record(final long nanos) {
+            count_.incrementAndGet();
+            totalNanos_.addAndGet(nanos);
+            histogram_.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1));
+            long max;
+            while (nanos > (max = maxNanos_.get()) && !maxNanos_.compareAndSet(max, nanos)) {
+                // retry
+            }
+        }
+
+        void reset() {
+            count_.set(0);
+            totalNanos_.set(0);
+            maxNanos_.set(0);
+            for (int i = 0; i < BUCKETS; i++) {
+                histogram_.set(i, 0);
+            }
+        }
+    }
+
+    /**
+     * 元のディレクティブの描画時間を計測する。
+     */
+    static final class MeteredDirective extends Directive {
+        private final Directive directive_;
+        private final Site site_;
+
+        MeteredDirective(final Directive directive, final Site site) {
+            directive_ = directive;
+            site_ = site;
+            setLocation(directive.getLine(), directive.getColumn(), directive.getTemplateName());
+        }
+
+        Directive getDirective() {
+            return directive_;
+        }
+
+        @Override
+        public String getName() {
+            return directive_.getName();
+        }
+
+        @Override
+        public int getType() {
+            return directive_.getType();
+        }
+
+        @Override
+        public boolean render(final InternalContextAdapter context,
+                              final Writer writer,
+                              final Node node)
+                throws IOException, ResourceNotFoundException,
+                       ParseErrorException, MethodInvocationException {
+            final long start = System.nanoTime();
+            try {
+                return directive_.render(context, writer, node);
+            } finally {
+                site_.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+
+    private final RuntimeServices rsvc_;
+    private final ConcurrentMap<String,Site> sites_ = new ConcurrentHashMap<String,Site>();
+    private ObjectName objectName_;
+
+    private DirectiveMetrics(final RuntimeServices rsvc) {
+        rsvc_ = rsvc;
+        register();
+    }
+
+    private void register() {
+        try {
+            final ObjectName objectName = new ObjectName(OBJECT_NAME_PREFIX
+                    + ",engine=" + Integer.toHexString(System.identityHashCode(rsvc_)));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            objectName_ = objectName;
+        } catch (final Exception ex) {
+            rsvc_.getLog().warn("DirectiveMetrics: could not register MBean", ex);
+        }
+    }
+
+    /**
+     * MBeanの登録を解除する。テンプレートエンジンを破棄する際に呼び出すこと。
+     */
+    public synchronized void unregister() {
+        if (objectName_ != null) {
+            try {
+                final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                if (server.isRegistered(objectName_)) {
+                    server.unregisterMBean(objectName_);
+                }
+            } catch (final Exception ex) {
+                rsvc_.getLog().warn("DirectiveMetrics: could not unregister MBean", ex);
+            }
+            objectName_ = null;
+        }
+    }
+
+    /**
+     * @return 登録されたMBeanの名前。登録されていない場合はnull。
+     */
+    public synchronized ObjectName getObjectName() {
+        return objectName_;
+    }
+
+    Site getSite(final Directive directive) {
+        final String name = "#" + directive.getName() + "() at "
+                + new Info(directive.getTemplateName(), directive.getLine(), directive.getColumn());
+        Site site = sites_.get(name);
+        if (site == null) {
+            final Site newSite = new Site(name);
+            site = sites_.putIfAbsent(name, newSite);
+            if (site == null) {
+                site = newSite;
+            }
+        }
+        return site;
+    }
+
+    private Site site(final String siteName) {
+        final Site site = sites_.get(siteName);
+        if (site == null) {
+            throw new IllegalArgumentException("No such site: " + siteName);
+        }
+        return site;
+    }
+
+
+    @Override
+    public long getRenderCount() {
+        long count = 0;
+        for (final Site site: sites_.values()) {
+            count += site.count_.get();
+        }
+        return count;
+    }
+
+    @Override
+    public String[] getSiteNames() {
+        final String[] names = sites_.keySet().toArray(new String[0]);
+        Arrays.sort(names);
+        return names;
+    }
+
+    @Override
+    public String[] getSummary() {
+        final String[] names = getSiteNames();
+        final String[] lines = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            lines[i] = String.format("%s: count=%d, mean=%.1fus, p50=%.1fus, p99=%.1fus, max=%.1fus",
+                                     names[i], getCount(names[i]), getMeanMicros(names[i]),
+                                     getPercentileMicros(names[i], 50), getPercentileMicros(names[i], 99),
+                                     getMaxMicros(names[i]));
+        }
+        return lines;
+    }
+
+    @Override
+    public long getCount(final String siteName) {
+        return site(siteName).count_.get();
+    }
+
+    @Override
+    public double getMeanMicros(final String siteName) {
+        final Site site = site(siteName);
+        final long count = site.count_.get();
+        return count == 0 ? 0 : site.totalNanos_.get() / 1000.0 / count;
+    }
+
+    @Override
+    public double getMaxMicros(final String siteName) {
+        return site(siteName).maxNanos_.get() / 1000.0;
+    }
+
+    @Override
+    public double getPercentileMicros(final String siteName, final double percentile) {
+        final long[] histogram = getHistogram(siteName);
+        long total = 0;
+        for (final long count: histogram) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+        final double threshold = total * Math.max(0, Math.min(percentile, 100)) / 100;
+        long cumulative = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            cumulative += histogram[i];
+            if (cumulative >= threshold && cumulative > 0) {
+                return (1L << i) / 1000.0;
+            }
+        }
+        return (1L << (BUCKETS - 1)) / 1000.0;
+    }
+
+    @Override
+    public long[] getHistogram(final String siteName) {
+        final Site site = site(siteName);
+        final long[] histogram = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            histogram[i] = site.histogram_.get(i);
+        }
+        return histogram;
+    }
+
+    @Override
+    public void reset() {
+        for (final Site site: sites_.values()) {
+            site.reset();
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+
+/**
+ * JMX management interface of {@link DirectiveMetrics}.
+ * <p>
+ * Each site is identified by a name such as <code>#import() at layout.vm[line 3, column 1]</code>.
+ * Latencies are inclusive, i.e. the time of an #apply contains the rendering of its base template.
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+public interface DirectiveMetricsMBean {
+
+    /**
+     * @return Total number of directive renderings.
+     */
+    long getRenderCount();
+
+    /**
+     * @return Names of all sites that have been initialized.
+     */
+    String[] getSiteNames();
+
+    /**
+     * @return One line per site: count, mean, 50/99 percentiles and max latency in microseconds.
+     */
+    String[] getSummary();
+
+    long getCount(String siteName);
+
+    double getMeanMicros(String siteName);
+
+    double getMaxMicros(String siteName);
+
+    /**
+     * @param siteName site name
+     * @param percentile percentile in the range of 0 to 100
+     * @return Upper bound of the histogram bucket that contains the percentile.
+     */
+    double getPercentileMicros(String siteName, double percentile);
+
+    /**
+     * @param siteName site name
+     * @return Bucket counts; bucket <i>n</i> holds latencies below 2<sup>n</sup> nanoseconds.
+     */
+    long[] getHistogram(String siteName);
+
+    /**
+     * Clear all counters and histograms.
+     */
+    void reset();
+
+}
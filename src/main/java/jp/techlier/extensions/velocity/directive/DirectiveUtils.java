@@ -17,10 +17,24 @@
  */
 package jp.techlier.extensions.velocity.directive;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.velocity.Template;
 import org.apache.velocity.app.Velocity;
 import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.runtime.RuntimeSingleton;
 import org.apache.velocity.runtime.directive.Directive;
 
+import jp.techlier.extensions.velocity.util.ByteBufferPool;
+import jp.techlier.extensions.velocity.util.ByteBufferWriter;
+
 
 /**
  * Utilities for directive implementations.
@@ -36,6 +50,7 @@ public class DirectiveUtils {
         Defvar.class,
         Defconst.class,
         Unset.class,
+        Scope.class,
         Import.class,
         Displace.class,
         Apply.class,
@@ -44,6 +59,7 @@ public class DirectiveUtils {
         Append.class,
         Nil.class,
         Nop.class,
+        Cache.class,
     };
 
 
@@ -65,4 +81,186 @@ public class DirectiveUtils {
         }
     }
 
+
+    /**
+     * Parse all templates under <code>file.resource.loader.path</code> of default template engine in parallel.
+     * Errors reported by directives are collected instead of waiting for the first request.
+     * @return template names which failed to parse, and the causes
+     * @since 1.4
+     */
+    public static Map<String,Exception> preloadTemplates() throws Exception {
+        return TemplatePreloader.ofSingleton().preload();
+    }
+
+    /**
+     * Parse all templates under <code>file.resource.loader.path</code> in parallel.
+     * Errors reported by directives are collected instead of waiting for the first request.
+     * @return template names which failed to parse, and the causes
+     * @since 1.4
+     */
+    public static Map<String,Exception> preloadTemplates(final VelocityEngine engine) throws Exception {
+        return TemplatePreloader.of(engine).preload();
+    }
+
+
+    /**
+     * Discard the template existence cached by #displace in default template engine.
+     * Call this after deploying templates.
+     */
+    public static void invalidateTemplateCache() {
+        invalidate((TemplateResolver)RuntimeSingleton.getApplicationAttribute(TemplateResolver.class.getName()));
+    }
+
+    /**
+     * Discard the template existence cached by #displace.
+     * Call this after deploying templates.
+     */
+    public static void invalidateTemplateCache(final VelocityEngine engine) {
+        invalidate((TemplateResolver)engine.getApplicationAttribute(TemplateResolver.class.getName()));
+    }
+
+    private static void invalidate(final TemplateResolver resolver) {
+        if (resolver != null) {
+            resolver.invalidate();
+        }
+    }
+
+
+    /**
+     * Return the templates affected by a change to the given template in default template engine.
+     * @param templateName absolute template name, as resolved by #import
+     * @return the template itself and all templates which import it directly or indirectly
+     * @since 1.4
+     */
+    public static Set<String> getDependentTemplates(final String templateName) {
+        return dependents((TemplateGraph)RuntimeSingleton.getApplicationAttribute(TemplateGraph.class.getName()),
+                          templateName);
+    }
+
+    /**
+     * Return the templates affected by a change to the given template.
+     * Only dependencies through #import, #displace and #apply which have been parsed or rendered are known.
+     * @param templateName absolute template name, as resolved by #import
+     * @return the template itself and all templates which import it directly or indirectly
+     * @since 1.4
+     */
+    public static Set<String> getDependentTemplates(final VelocityEngine engine, final String templateName) {
+        return dependents((TemplateGraph)engine.getApplicationAttribute(TemplateGraph.class.getName()),
+                          templateName);
+    }
+
+    private static Set<String> dependents(final TemplateGraph graph, final String templateName) {
+        if (graph == null) {
+            return Collections.singleton(templateName);
+        }
+        return Collections.unmodifiableSet(graph.getDependents(templateName));
+    }
+
+    /**
+     * Discard the state held for the given template and its dependents in default template engine.
+     * Velocity's own resource cache is not evicted.
+     * @param templateName absolute template name, as resolved by #import
+     * @return the templates invalidated
+     * @since 1.4
+     */
+    public static Set<String> invalidateTemplate(final String templateName) {
+        final Set<String> dependents = getDependentTemplates(templateName);
+        invalidate((TemplateResolver)RuntimeSingleton.getApplicationAttribute(TemplateResolver.class.getName()),
+                   dependents);
+        return dependents;
+    }
+
+    /**
+     * Discard the state held for the given template and its dependents:
+     * the templates and existence cached by #import/#displace.
+     * Call this after deploying a template instead of {@link #invalidateTemplateCache(VelocityEngine)}.
+     * Velocity's own resource cache is not evicted: with <code>file.resource.loader.cache = true</code>,
+     * a changed template is reloaded only after <code>file.resource.loader.modificationCheckInterval</code>.
+     * @param templateName absolute template name, as resolved by #import
+     * @return the templates invalidated
+     * @since 1.4
+     */
+    public static Set<String> invalidateTemplate(final VelocityEngine engine, final String templateName) {
+        final Set<String> dependents = getDependentTemplates(engine, templateName);
+        invalidate((TemplateResolver)engine.getApplicationAttribute(TemplateResolver.class.getName()),
+                   dependents);
+        return dependents;
+    }
+
+    /**
+     * Release the resources held for default template engine:
+     * stop the log thread started for <code>directive.log.async</code>
+     * and unregister the MBean of <code>directive.metrics.enabled</code>.
+     * @since 1.4
+     */
+    public static void shutdown() throws InterruptedException {
+        shutdown((AsyncLog)RuntimeSingleton.getApplicationAttribute(AsyncLog.class.getName()),
+                 (DirectiveMetrics)RuntimeSingleton.getApplicationAttribute(DirectiveMetrics.class.getName()));
+    }
+
+    /**
+     * Release the resources held for the engine:
+     * stop the log thread started for <code>directive.log.async</code>, after writing pending messages,
+     * and unregister the MBean of <code>directive.metrics.enabled</code>,
+     * which otherwise keeps the engine and its templates reachable.
+     * Call this when discarding the engine. Later messages are logged by the rendering thread.
+     * @since 1.4
+     */
+    public static void shutdown(final VelocityEngine engine) throws InterruptedException {
+        shutdown((AsyncLog)engine.getApplicationAttribute(AsyncLog.class.getName()),
+                 (DirectiveMetrics)engine.getApplicationAttribute(DirectiveMetrics.class.getName()));
+    }
+
+    private static void shutdown(final AsyncLog log, final DirectiveMetrics metrics) throws InterruptedException {
+        if (metrics != null) {
+            metrics.unregister();
+        }
+        if (log != null) {
+            log.stop();
+        }
+    }
+
+    private static void invalidate(final TemplateResolver resolver, final Set<String> templateNames) {
+        if (resolver != null) {
+            for (final String templateName: templateNames) {
+                resolver.invalidate(templateName);
+            }
+        }
+    }
+
+
+    /**
+     * Merge the template straight into the channel, without building the whole output in memory.
+     * The output is encoded into pooled buffers and written to the channel at #block/#import boundaries.
+     * Text of blocks and imported templates is written pre-encoded
+     * when <code>encoding</code> equals <code>output.encoding</code>.
+     * The channel is not closed.
+     * @param encoding output encoding
+     * @since 1.4
+     */
+    public static void mergeTemplate(final Template template, final String encoding,
+                                     final Context context, final WritableByteChannel channel) throws IOException {
+        final ByteBufferWriter writer = new ByteBufferWriter(ByteBufferPool.getDefault(), encoding, channel); try {
+            template.merge(context, writer);
+            writer.close();
+        } finally {
+            writer.release();
+        }
+    }
+
+    /**
+     * Merge the template straight into the file, replacing its content.
+     * @param encoding output encoding
+     * @see #mergeTemplate(Template, String, Context, WritableByteChannel)
+     * @since 1.4
+     */
+    public static void mergeTemplate(final Template template, final String encoding,
+                                     final Context context, final File file) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file); try {
+            mergeTemplate(template, encoding, context, out.getChannel());
+        } finally {
+            out.close();
+        }
+    }
+
 }
@@ -20,12 +20,17 @@ package jp.techlier.extensions.velocity.directive;
 import java.io.IOException;
 import java.io.Writer;
 
+import org.apache.velocity.Template;
 import org.apache.velocity.context.InternalContextAdapter;
 import org.apache.velocity.exception.MethodInvocationException;
 import org.apache.velocity.exception.ParseErrorException;
 import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.runtime.parser.node.Node;
 
+import static jp.techlier.extensions.velocity.directive.DirectiveConstants.*;
+
 
 
 /**
@@ -35,6 +40,13 @@ import org.apache.velocity.runtime.parser.node.Node;
  * 指定されたテンプレートが存在しない場合には#displace ～ #endで囲まれたブロックをパースする。
  * </p>
  * <p>
+ * <code>directive.displace.cache.ttl</code>に秒数を指定すると、テンプレートの存在確認の結果を
+ * その期間保持する。負の値を指定した場合は無期限となる。(default = 0: 保持しない)
+ * テンプレートを配置した際には、{@link DirectiveUtils#invalidateTemplateCache(org.apache.velocity.app.VelocityEngine)}
+ * を呼び出すことで、保持された結果を破棄できる。
+ * 存在すると判断したテンプレートが削除されていた場合は、保持された結果を破棄してブロックを描画する。
+ * </p>
+ * <p>
  * <b>記述例）</b>
  * <pre>
  * template...
@@ -67,6 +79,20 @@ public class Displace extends Import {
         return BLOCK;
     }
 
+
+    /** テンプレートの存在確認の結果を保持する期間(ミリ秒) */
+    private long existenceTtl_;
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.runtime.directive.Directive#init(org.apache.velocity.runtime.RuntimeServices, org.apache.velocity.context.InternalContextAdapter, org.apache.velocity.runtime.parser.node.Node)
+     */
+    @Override
+    public void init(final RuntimeServices rs, final InternalContextAdapter context, final Node node)
+            throws TemplateInitException {
+        super.init(rs, context, node);
+        existenceTtl_ = rsvc.getInt(DISPLACE_CACHE_TTL, DEFAULT_DISPLACE_CACHE_TTL) * 1000L;
+    }
+
     /*(non-Javadoc)
      * @see org.apache.velocity.runtime.directive.Directive#render(org.apache.velocity.context.InternalContextAdapter, java.io.Writer, org.apache.velocity.runtime.parser.node.Node)
      */
@@ -80,8 +106,8 @@ public class Displace extends Import {
             return true;
         }
 
-        final String templateName = getAbstructTemplateName(context, helper_.getStringArgument(0));
-        if (templateName != null && rsvc.getLoaderNameForResource(templateName) != null) {
+        final TemplateResolver.Handle handle = resolveTemplate(context);
+        if (handle != null && handle.exists(existenceTtl_)) {
             return super.render(context, writer, node);
         }
         else {
@@ -89,4 +115,26 @@ public class Displace extends Import {
         }
     }
 
+    @Override
+    Template loadTemplate(final InternalContextAdapter context,
+                          final TemplateResolver.Handle handle) throws Exception {
+        try {
+            return super.loadTemplate(context, handle);
+        } catch (ResourceNotFoundException e) {
+            // removed after the existence was cached
+            handle.forgetExistence();
+            helper_.debug("not found: " + handle.getName());
+            return null;
+        }
+    }
+
+    @Override
+    void renderNotFound(final InternalContextAdapter context,
+                        final Writer writer,
+                        final Node node)
+            throws IOException, ResourceNotFoundException,
+                   ParseErrorException, MethodInvocationException {
+        node.jjtGetChild(1).render(context, writer);
+    }
+
 }
@@ -0,0 +1,132 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.parser.node.ASTText;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.parser.node.NodeUtils;
+
+import jp.techlier.extensions.velocity.util.ByteBufferWriter;
+
+
+/**
+ * 子ノードのうちテキストを、出力エンコーディング(output.encoding)でエンコード済みのバイト列として保持するノードの描画。
+ * <p>
+ * 出力先が同じ文字コードの{@link ByteBufferWriter}の場合、テキストは保持したバイト列をそのまま書き込み、
+ * それ以外の子ノードは通常どおり描画する。
+ * 出力先がそれ以外のWriterの場合は、ノードをそのまま描画する。
+ * バイト列は最初にByteBufferWriterへ描画する際に作成し、以後はスレッド間で共有する。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+final class EncodedText {
+
+    private final Node node_;
+    /** 出力エンコーディング。不明な文字コードの場合はnull。 */
+    private final Charset charset_;
+    /** 子ノードがすべてテキストの場合はtrue */
+    private final boolean literalOnly_;
+    /** 子ノードごとのエンコード済みのテキスト。テキスト以外の子ノードはnull。未作成の場合はnull。 */
+    private volatile byte[][] texts_;
+
+    /**
+     * @param rsvc {@link RuntimeServices}
+     * @param node テキストを子ノードに持つノード。テンプレートのルートノードまたはブロックの内容。
+     */
+    EncodedText(final RuntimeServices rsvc, final Node node) {
+        node_ = node;
+        charset_ = charsetOf(rsvc.getString(RuntimeConstants.OUTPUT_ENCODING, RuntimeConstants.ENCODING_DEFAULT));
+        boolean literalOnly = true;
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            literalOnly &= node.jjtGetChild(i) instanceof ASTText;
+        }
+        literalOnly_ = literalOnly;
+    }
+
+    private static Charset charsetOf(final String encoding) {
+        try {
+            return Charset.forName(encoding);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    Node getNode() {
+        return node_;
+    }
+
+    /**
+     * @return 子ノードがすべてテキストで、描画結果がcontextに依存しない場合はtrue
+     */
+    boolean isLiteralOnly() {
+        return literalOnly_;
+    }
+
+    /**
+     * @return false if rendering of the node failed.
+     */
+    boolean render(final InternalContextAdapter context, final Writer writer)
+            throws IOException, ResourceNotFoundException,
+                   ParseErrorException, MethodInvocationException {
+        if (!(writer instanceof ByteBufferWriter)
+                || charset_ == null || !charset_.equals(((ByteBufferWriter)writer).getCharset())) {
+            return node_.render(context, writer);
+        }
+        final ByteBufferWriter byteWriter = (ByteBufferWriter)writer;
+        final byte[][] texts = getTexts();
+        boolean result = true;
+        for (int i = 0; i < texts.length; i++) {
+            if (texts[i] != null) {
+                byteWriter.writeEncoded(texts[i], 0, texts[i].length);
+            }
+            else {
+                result &= node_.jjtGetChild(i).render(context, writer);
+            }
+        }
+        return result;
+    }
+
+    private byte[][] getTexts() {
+        byte[][] texts = texts_;
+        if (texts == null) {
+            texts = new byte[node_.jjtGetNumChildren()][];
+            for (int i = 0; i < texts.length; i++) {
+                final Node child = node_.jjtGetChild(i);
+                if (child instanceof ASTText) {
+                    // ASTText#init()と同じ方法で内容を得る
+                    texts[i] = NodeUtils.tokenLiteral(child.getFirstToken()).getBytes(charset_);
+                }
+            }
+            texts_ = texts;
+        }
+        return texts;
+    }
+
+}
@@ -0,0 +1,272 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.velocity.runtime.RuntimeServices;
+
+import static jp.techlier.extensions.velocity.directive.DirectiveConstants.*;
+
+
+/**
+ * #cache()で描画された内容を保持する、テンプレートエンジンごとのキャッシュ。
+ * <p>
+ * 保持する内容の合計文字数が<code>directive.cache.max.size</code>を超えた場合には、
+ * 最も長く参照されていないものから破棄する。
+ * 参照の順序は、ロックを取らずに記録するため近似である。
+ * キャッシュされた内容の取得はロックを取らず、ロックは描画の開始と完了、破棄の際にのみ取る。
+ * 同じキーの内容を複数のスレッドが同時に要求した場合、描画を行うのはひとつのスレッドのみで、
+ * 他のスレッドは<code>directive.cache.wait.timeout</code>ミリ秒までその完了を待つ。
+ * 待ちきれなかった場合と、描画中のスレッド自身が同じキーを要求した場合は、キャッシュせずに描画させる。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+public final class FragmentCache {
+
+    /**
+     * @param rsvc {@link RuntimeServices}
+     * @return テンプレートエンジンに対応するキャッシュ
+     */
+    public static FragmentCache getInstance(final RuntimeServices rsvc) {
+        synchronized (rsvc) {
+            FragmentCache cache = (FragmentCache)rsvc.getApplicationAttribute(FragmentCache.class.getName());
+            if (cache == null) {
+                cache = new FragmentCache(rsvc.getInt(CACHE_MAX_SIZE, DEFAULT_CACHE_MAX_SIZE),
+                                          rsvc.getInt(CACHE_WAIT_TIMEOUT, DEFAULT_CACHE_WAIT_TIMEOUT));
+                rsvc.setApplicationAttribute(FragmentCache.class.getName(), cache);
+            }
+            return cache;
+        }
+    }
+
+
+    private static final class Entry {
+        final String content_;
+        final long expires_;
+        /** 最後に参照された時点の{@link FragmentCache#clock_} */
+        volatile long accessed_;
+
+        Entry(final String content, final long expires) {
+            content_ = content;
+            expires_ = expires;
+        }
+    }
+
+    /** 破棄する順序を決めるための、参照された時点の写し */
+    private static final class Candidate {
+        final String key_;
+        final Entry entry_;
+        final long accessed_;
+
+        Candidate(final String key, final Entry entry) {
+            key_ = key;
+            entry_ = entry;
+            accessed_ = entry.accessed_;
+        }
+    }
+
+    private static final Comparator<Candidate> LEAST_RECENTLY_ACCESSED = new Comparator<Candidate>() {
+        @Override
+        public int compare(final Candidate a, final Candidate b) {
+            return a.accessed_ < b.accessed_ ? -1 : a.accessed_ > b.accessed_ ? 1 : 0;
+        }
+    };
+
+    /** 描画中のキーの、描画しているスレッドと完了の通知 */
+    private static final class Loading {
+        final Thread owner_ = Thread.currentThread();
+        final CountDownLatch done_ = new CountDownLatch(1);
+    }
+
+    /** {@link #acquire}の戻り値で、呼び出し元がキャッシュせずに描画すべきことを表す */
+    static final String UNCACHED = new String("");
+
+    private final long maxSize_;
+    private final long waitTimeout_;
+    private long size_;
+    /** 参照の順序を表す時刻。競合した更新は失われてもよい。 */
+    private volatile long clock_;
+    private final ConcurrentMap<String,Entry> entries_ = new ConcurrentHashMap<String,Entry>();
+    private final Map<String,Loading> loadings_ = new HashMap<String,Loading>();
+
+    /**
+     * @param maxSize 保持する内容の合計文字数の上限
+     * @param waitTimeout 他のスレッドの描画の完了を待つ時間(ミリ秒)
+     */
+    FragmentCache(final long maxSize, final long waitTimeout) {
+        maxSize_ = maxSize;
+        waitTimeout_ = waitTimeout;
+    }
+
+
+    /**
+     * キャッシュされた内容を取得する。
+     * <p>
+     * 戻り値がnullの場合、呼び出し元がこのキーの内容を描画する。
+     * 描画後は必ず{@link #put}または{@link #abort}を呼び出すこと。
+     * 他のスレッドが同じキーの内容を描画中の場合は、その完了を待つ。
+     * 戻り値が{@link #UNCACHED}の場合、呼び出し元はキャッシュせずに描画し、put/abortは呼び出さない。
+     * </p>
+     *
+     * @param key キー
+     * @return キャッシュされた内容。呼び出し元で描画する場合はnullまたは{@link #UNCACHED}。
+     * @throws InterruptedException 描画の完了を待つ間に割り込まれた場合
+     */
+    String acquire(final String key) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + waitTimeout_;
+        while (true) {
+            final String content = get(key);
+            if (content != null) {
+                return content;
+            }
+            final Loading loading;
+            synchronized (this) {
+                if (entries_.containsKey(key)) {
+                    // 他のスレッドが描画を完了した
+                    continue;
+                }
+                loading = loadings_.get(key);
+                if (loading == null) {
+                    loadings_.put(key, new Loading());
+                    return null;
+                }
+                if (loading.owner_ == Thread.currentThread()) {
+                    // 同じキーの#cacheの内側
+                    return UNCACHED;
+                }
+            }
+            final long timeout = deadline - System.currentTimeMillis();
+            if (timeout <= 0 || !loading.done_.await(timeout, TimeUnit.MILLISECONDS)) {
+                return UNCACHED;
+            }
+        }
+    }
+
+    /**
+     * @param key キー
+     * @return 有効期限内の内容。ない場合はnull。
+     */
+    private String get(final String key) {
+        final Entry entry = entries_.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires_ != 0 && entry.expires_ <= System.currentTimeMillis()) {
+            synchronized (this) {
+                if (entries_.remove(key, entry)) {
+                    size_ -= entry.content_.length();
+                }
+            }
+            return null;
+        }
+        final long clock = clock_ + 1;
+        clock_ = clock;
+        entry.accessed_ = clock;
+        return entry.content_;
+    }
+
+    /**
+     * 描画した内容をキャッシュし、完了を待っているスレッドを再開させる。
+     *
+     * @param key キー
+     * @param content 描画した内容
+     * @param ttl 有効期間(ミリ秒)。0以下の場合は期限なし。
+     */
+    synchronized void put(final String key, final String content, final long ttl) {
+        if (content.length() <= maxSize_) {
+            remove(key);
+            final Entry entry = new Entry(content, ttl > 0 ? System.currentTimeMillis() + ttl : 0);
+            final long clock = clock_ + 1;
+            clock_ = clock;
+            entry.accessed_ = clock;
+            entries_.put(key, entry);
+            size_ += content.length();
+            if (size_ > maxSize_) {
+                evict();
+            }
+        }
+        abort(key);
+    }
+
+    private void evict() {
+        final List<Candidate> candidates = new ArrayList<Candidate>(entries_.size());
+        for (final Map.Entry<String,Entry> entry: entries_.entrySet()) {
+            candidates.add(new Candidate(entry.getKey(), entry.getValue()));
+        }
+        Collections.sort(candidates, LEAST_RECENTLY_ACCESSED);
+        for (int i = 0; size_ > maxSize_ && i < candidates.size(); i++) {
+            final Candidate candidate = candidates.get(i);
+            if (entries_.remove(candidate.key_, candidate.entry_)) {
+                size_ -= candidate.entry_.content_.length();
+            }
+        }
+    }
+
+    /**
+     * 描画を中止し、完了を待っているスレッドを再開させる。
+     *
+     * @param key キー
+     */
+    synchronized void abort(final String key) {
+        final Loading loading = loadings_.remove(key);
+        if (loading != null) {
+            loading.done_.countDown();
+        }
+    }
+
+
+    /**
+     * @param key キー
+     * @return キャッシュされた内容を破棄した場合はtrue
+     */
+    public synchronized boolean remove(final String key) {
+        final Entry entry = entries_.remove(key);
+        if (entry != null) {
+            size_ -= entry.content_.length();
+        }
+        return entry != null;
+    }
+
+    /**
+     * キャッシュされた内容をすべて破棄する。
+     */
+    public synchronized void clear() {
+        entries_.clear();
+        size_ = 0;
+    }
+
+    /**
+     * @return キャッシュされている内容の合計文字数
+     */
+    public synchronized long size() {
+        return size_;
+    }
+
+}
@@ -20,6 +20,7 @@ package jp.techlier.extensions.velocity.directive;
 import java.io.IOException;
 import java.io.Writer;
 import java.util.Arrays;
+import java.util.List;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.velocity.Template;
@@ -34,6 +35,8 @@ import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.runtime.directive.InputBase;
 import org.apache.velocity.runtime.parser.node.Node;
 
+import jp.techlier.extensions.velocity.util.ByteBufferWriter;
+
 
 
 
@@ -70,6 +73,14 @@ public class Import extends InputBase {
 
     protected DirectiveHelper helper_;
 
+    private TemplateResolver resolver_;
+    private int maxDepth_;
+    /** 引数がリテラルの場合の値 */
+    private String literalName_;
+    /** 初期化時のテンプレート名と、それを基準としたリテラル引数の解決結果 */
+    private String initTemplateName_;
+    private TemplateResolver.Handle literalHandle_;
+
     /*(non-Javadoc)
      * @see org.apache.velocity.runtime.directive.Directive#init(org.apache.velocity.runtime.RuntimeServices, org.apache.velocity.context.InternalContextAdapter, org.apache.velocity.runtime.parser.node.Node)
      */
@@ -83,6 +94,20 @@ public class Import extends InputBase {
             throw helper_.newTemplateInitException(node, "requires exactly one argument.");
         }
         helper_.checkArgumentMustBeString(0);
+
+        resolver_ = TemplateResolver.getInstance(rsvc);
+        maxDepth_ = rsvc.getInt(RuntimeConstants.PARSE_DIRECTIVE_MAXDEPTH, MAXDEPTH_DEFAULT);
+        literalName_ = helper_.getLiteralArgument(0);
+        if (literalName_ != null) {
+            initTemplateName_ = context.getCurrentTemplateName();
+            literalHandle_ = resolver_.resolve(initTemplateName_, literalName_);
+            final List<String> cycle = TemplateGraph.getInstance(rsvc).findCycle(initTemplateName_,
+                                                                                 literalHandle_.getName());
+            if (cycle != null) {
+                helper_.warn("circular import: " + StringUtils.join(cycle, " -> "));
+            }
+        }
+        DirectiveMetrics.attach(rsvc, this, node);
     }
 
     /*(non-Javadoc)
@@ -98,25 +123,24 @@ public class Import extends InputBase {
             return true;
         }
 
-        if (context.getTemplateNameStack().length
-                >= rsvc.getInt(RuntimeConstants.PARSE_DIRECTIVE_MAXDEPTH, MAXDEPTH_DEFAULT)) {
+        if (context.getTemplateNameStack().length >= maxDepth_) {
             return helper_.error("max recursion depth reached: "
                               + Arrays.asList(context.getTemplateNameStack()));
         }
 
-        final String templateName = getAbstructTemplateName(context, helper_.getStringArgument(0));
-        if (templateName == null) {
+        final TemplateResolver.Handle handle = resolveTemplate(context);
+        if (handle == null) {
             return helper_.error("argument must not be null.");
         }
-        helper_.debug(templateName);
+        helper_.debug(handle.getName());
 
         try {
-            final Template importingTemplate = rsvc.getTemplate(templateName, getInputEncoding(context));
-            try {
-                context.pushCurrentTemplateName(templateName);
-                ((Node)importingTemplate.getData()).render(context, writer);
-            } finally {
-                context.popCurrentTemplateName();
+            final Template importingTemplate = loadTemplate(context, handle);
+            if (importingTemplate != null) {
+                renderTemplate(context, writer, node, importingTemplate);
+            }
+            else {
+                renderNotFound(context, writer, node);
             }
         } catch (RuntimeException e) {
             helper_.error("rendering failure.", e);
@@ -125,15 +149,77 @@ public class Import extends InputBase {
             helper_.error("rendering failure.", e);
             throw new VelocityException(e);
         }
+        if (writer instanceof ByteBufferWriter) {
+            ((ByteBufferWriter)writer).checkpoint();
+        }
         return true;
     }
 
+    /**
+     * @return 読み込んだテンプレート。見つからなかったことを{@link #renderNotFound}で扱う場合はnull。
+     */
+    Template loadTemplate(final InternalContextAdapter context,
+                          final TemplateResolver.Handle handle) throws Exception {
+        return handle.getTemplate(getInputEncoding(context));
+    }
+
+    /**
+     * {@link #loadTemplate}がnullを返した場合の描画。
+     */
+    void renderNotFound(final InternalContextAdapter context,
+                        final Writer writer,
+                        final Node node)
+            throws IOException, ResourceNotFoundException,
+                   ParseErrorException, MethodInvocationException {
+    }
+
+    protected void renderTemplate(final InternalContextAdapter context,
+                                  final Writer writer,
+                                  final Node node,
+                                  final Template template)
+            throws IOException, ResourceNotFoundException,
+                   ParseErrorException, MethodInvocationException {
+        try {
+            context.pushCurrentTemplateName(template.getName());
+            if (writer instanceof ByteBufferWriter) {
+                resolver_.getEncodedText(template).render(context, writer);
+            }
+            else {
+                ((Node)template.getData()).render(context, writer);
+            }
+        } finally {
+            context.popCurrentTemplateName();
+        }
+    }
+
+    /**
+     * @param context {@link InternalContextAdapter}
+     * @return 引数で指定されたテンプレートへの参照。引数がnullの場合はnull。
+     */
+    TemplateResolver.Handle resolveTemplate(final InternalContextAdapter context) {
+        final String currentTemplateName = context.getCurrentTemplateName();
+        if (literalHandle_ != null && currentTemplateName.equals(initTemplateName_)) {
+            return literalHandle_;
+        }
+        return resolver_.resolve(currentTemplateName,
+                                 literalName_ != null ? literalName_ : helper_.getStringArgument(context, 0));
+    }
+
     protected String getAbstructTemplateName(final InternalContextAdapter context,
                                              final String templateName) {
+        return getAbstructTemplateName(context.getCurrentTemplateName(), templateName);
+    }
+
+    /**
+     * @param currentTemplateName 基準となるテンプレート名
+     * @param templateName テンプレート名。'/'で始まらない場合はcurrentTemplateNameからの相対パスとみなす。
+     * @return 絶対パスに変換されたテンプレート名
+     */
+    static String getAbstructTemplateName(final String currentTemplateName,
+                                          final String templateName) {
         if (templateName == null || templateName.startsWith("/")) {
             return templateName;
         }
-        final String currentTemplateName = context.getCurrentTemplateName();
         String currentTemplatePath = ".";
         if (currentTemplateName.indexOf('/') >= 0) {
             currentTemplatePath = StringUtils.substringBeforeLast(currentTemplateName, "/");
@@ -19,21 +19,36 @@ package jp.techlier.extensions.velocity.directive;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.velocity.context.InternalContextAdapter;
 import org.apache.velocity.exception.MethodInvocationException;
 import org.apache.velocity.exception.ParseErrorException;
 import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.runtime.directive.Directive;
+import org.apache.velocity.runtime.parser.node.ASTComment;
+import org.apache.velocity.runtime.parser.node.ASTEscape;
+import org.apache.velocity.runtime.parser.node.ASTEscapedDirective;
+import org.apache.velocity.runtime.parser.node.ASTMethod;
+import org.apache.velocity.runtime.parser.node.ASTReference;
+import org.apache.velocity.runtime.parser.node.ASTText;
 import org.apache.velocity.runtime.parser.node.Node;
 
 
 
 /**
- * Pluggable directive that handles the <code>#import()</code> statement.
+ * Pluggable directive that handles the <code>#nil()</code> statement.
  * <p>
  * パース結果を出力しないブロック。
  * </p>
+ * <p>
+ * 副作用を持ちうるノード(#setや、#defvarなどのディレクティブ、メソッド呼び出しを含む参照)のみを評価する。
+ * テキスト、コメント、メソッド呼び出しを含まない参照は、評価せずに読み飛ばす。
+ * どのノードを評価するかは初期化時に決定する。
+ * </p>
  *
  * <p>
  * <b>記述例）</b>
@@ -71,6 +86,57 @@ public class Nil extends Directive {
         return BLOCK;
     }
 
+
+    /** 評価するノード */
+    private Node[] effectiveNodes_;
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.runtime.directive.Directive#init(org.apache.velocity.runtime.RuntimeServices, org.apache.velocity.context.InternalContextAdapter, org.apache.velocity.runtime.parser.node.Node)
+     */
+    @Override
+    public void init(final RuntimeServices rs, final InternalContextAdapter context, final Node node)
+            throws TemplateInitException {
+        super.init(rs, context, node);
+
+        final Node body = node.jjtGetChild(node.jjtGetNumChildren() - 1);
+        final List<Node> effectiveNodes = new ArrayList<Node>();
+        for (int i = 0; i < body.jjtGetNumChildren(); i++) {
+            final Node child = body.jjtGetChild(i);
+            if (hasSideEffects(child)) {
+                effectiveNodes.add(child);
+            }
+        }
+        effectiveNodes_ = effectiveNodes.toArray(new Node[effectiveNodes.size()]);
+        DirectiveMetrics.attach(rsvc, this, node);
+    }
+
+    /**
+     * @param node ノード
+     * @return 評価すると副作用を生じうる場合はtrue
+     */
+    static boolean hasSideEffects(final Node node) {
+        if (node instanceof ASTText || node instanceof ASTComment
+                || node instanceof ASTEscape || node instanceof ASTEscapedDirective) {
+            return false;
+        }
+        if (node instanceof ASTReference) {
+            return containsMethod(node);
+        }
+        return true;
+    }
+
+    private static boolean containsMethod(final Node node) {
+        if (node instanceof ASTMethod) {
+            return true;
+        }
+        for (int i = 0; i < node.jjtGetNumChildren(); i++) {
+            if (containsMethod(node.jjtGetChild(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /*(non-Javadoc)
      * @see org.apache.velocity.runtime.directive.Directive#render(org.apache.velocity.context.InternalContextAdapter, java.io.Writer, org.apache.velocity.runtime.parser.node.Node)
      */
@@ -80,11 +146,29 @@ public class Nil extends Directive {
                           final Node node)
             throws IOException, ResourceNotFoundException,
                    ParseErrorException, MethodInvocationException {
-        return node.jjtGetChild(0).render(context, new NilWriter());
+        boolean result = true;
+        for (final Node child: effectiveNodes_) {
+            result &= child.render(context, NIL_WRITER);
+        }
+        return result;
     }
 
+    /** 状態を持たないため、すべての描画で共有する */
+    private static final Writer NIL_WRITER = new NilWriter();
+
+    /**
+     * 出力を捨てるWriter。
+     * Writerの既定の実装はlockで同期し共有のバッファを使うため、すべての出力メソッドを上書きしてロックを取らないようにする。
+     */
     static class NilWriter extends Writer {
+        @Override public void write(int c) { /* nothing */ }
+        @Override public void write(char[] cbuf) { /* nothing */ }
         @Override public void write(char[] cbuf, int off, int len) { /* nothing */ }
+        @Override public void write(String str) { /* nothing */ }
+        @Override public void write(String str, int off, int len) { /* nothing */ }
+        @Override public Writer append(CharSequence csq) { return this; }
+        @Override public Writer append(CharSequence csq, int start, int end) { return this; }
+        @Override public Writer append(char c) { return this; }
         @Override public void flush() { /* nothing */ }
         @Override public void close() { /* nothing */ }
     }
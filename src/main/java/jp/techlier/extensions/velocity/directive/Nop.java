@@ -20,6 +20,8 @@ package jp.techlier.extensions.velocity.directive;
 import java.io.Writer;
 
 import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeServices;
 import org.apache.velocity.runtime.directive.Directive;
 import org.apache.velocity.runtime.parser.node.Node;
 
@@ -48,6 +50,17 @@ public class Nop extends Directive {
         return LINE;
     }
 
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.runtime.directive.Directive#init(org.apache.velocity.runtime.RuntimeServices, org.apache.velocity.context.InternalContextAdapter, org.apache.velocity.runtime.parser.node.Node)
+     */
+    @Override
+    public void init(final RuntimeServices rs, final InternalContextAdapter context, final Node node)
+            throws TemplateInitException {
+        super.init(rs, context, node);
+        DirectiveMetrics.attach(rsvc, this, node);
+    }
+
     /*(non-Javadoc)
      * @see org.apache.velocity.runtime.directive.Directive#render(org.apache.velocity.context.InternalContextAdapter, java.io.Writer, org.apache.velocity.runtime.parser.node.Node)
      */
@@ -19,7 +19,6 @@ package jp.techlier.extensions.velocity.directive;
 
 import java.io.IOException;
 import java.io.Writer;
-import java.util.List;
 
 import org.apache.velocity.context.InternalContextAdapter;
 import org.apache.velocity.exception.MethodInvocationException;
@@ -52,21 +51,20 @@ public class Prepend extends Block {
                           final Node node)
             throws IOException, ResourceNotFoundException,
                    ParseErrorException, MethodInvocationException {
-        final List<Object> chainOfBlock = getBlockChain(context, node);
+        final BlockChain chainOfBlock = getBlockChain(context, node);
         if (chainOfBlock == null) return false;
 
         if (writer instanceof ApplyWriter) { // inside apply derective
-            if (chainOfBlock.contains(BASEBLOCK_RENDERING_POSITION_MARKER)) {
-                final Object blockObject = parseBlock(context, node.jjtGetChild(1));
-                if (blockObject == null) return false;
-                chainOfBlock.add(chainOfBlock.indexOf(BASEBLOCK_RENDERING_POSITION_MARKER),
-                                 blockObject);
-            }
-            return true;
+            return defineBlock(context, (ApplyWriter)writer, node, chainOfBlock);
         }
         else {
             return helper_.warn("found outside of #apply");
         }
     }
 
+    @Override
+    protected void insertBlock(final BlockChain blockChain, final Object blockObject) {
+        blockChain.insertBeforeBaseBlock(blockObject);
+    }
+
 }
@@ -0,0 +1,111 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.exception.ParseErrorException;
+import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.exception.TemplateInitException;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.directive.Directive;
+import org.apache.velocity.runtime.parser.node.Node;
+
+
+
+/**
+ * Pluggable directive that handles the <code>#scope()</code> statement.
+ * <p>
+ * #scope ~ #endの内側で代入された変数を、内側でのみ有効とする。
+ * 内側の変数は{@link ScopeContext}のフレームに保持され、#endで一度に破棄される。
+ * 外側の変数は内側からも参照できるが、内側での代入と削除は外側に影響しない。
+ * 複数の変数を#unset($var, true)で一つずつ削除する必要はない。
+ * </p>
+ * <p>
+ * <b>記述例）</b>
+ * <pre>
+ * template...
+ * #set($var = 'outer')
+ * #scope()
+ * #set($var = 'inner')
+ * #set($local = 'local')
+ * $var $local
+ * #end
+ * $var $local
+ *
+ * output...
+ * inner local
+ * outer $local
+ * </pre>
+ *　</p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+public class Scope extends Directive {
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.runtime.directive.Directive#getName()
+     */
+    @Override
+    public String getName() {
+        return "scope";
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.runtime.directive.Directive#getType()
+     */
+    @Override
+    public int getType() {
+        return BLOCK;
+    }
+
+
+    protected DirectiveHelper helper_;
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.runtime.directive.Directive#init(org.apache.velocity.runtime.RuntimeServices, org.apache.velocity.context.InternalContextAdapter, org.apache.velocity.runtime.parser.node.Node)
+     */
+    @Override
+    public void init(final RuntimeServices rs, final InternalContextAdapter context, final Node node)
+            throws TemplateInitException {
+        super.init(rs, context, node);
+
+        helper_ = new DirectiveHelper(this, rsvc, context, node);
+        if (node.jjtGetNumChildren() != 1) {
+            throw helper_.newTemplateInitException(node, "takes no arguments.");
+        }
+        DirectiveMetrics.attach(rsvc, this, node);
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.runtime.directive.Directive#render(org.apache.velocity.context.InternalContextAdapter, java.io.Writer, org.apache.velocity.runtime.parser.node.Node)
+     */
+    @Override
+    public boolean render(final InternalContextAdapter context,
+                          final Writer writer,
+                          final Node node)
+            throws IOException, ResourceNotFoundException,
+                   ParseErrorException, MethodInvocationException {
+        return node.jjtGetChild(0).render(new ScopeContext(context), writer);
+    }
+
+}
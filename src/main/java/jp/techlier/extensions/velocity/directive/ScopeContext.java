@@ -0,0 +1,176 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.velocity.context.ChainedInternalContextAdapter;
+import org.apache.velocity.context.Context;
+import org.apache.velocity.context.InternalContextAdapter;
+
+
+/**
+ * #scope ~ #endの内側で用いるcontext。
+ * <p>
+ * 内側で代入された変数は、このcontextが持つフレームにのみ保持され、外側のcontextは変更されない。
+ * 参照はフレーム、外側のcontextの順に行う。
+ * 内側で削除された変数は、外側に同じ名前の変数があっても、内側では未定義となる。
+ * フレームはcontextとともに破棄されるため、変数の数によらず一度に消える。
+ * </p>
+ * <p>
+ * 内側のマクロ呼び出しなどでcontextが包まれた場合にも、{@link #getInternalUserContext()}はこのcontextを返す。
+ * そのため、#unset($var, true)と#defconstもフレームに対して行われ、外側のcontextは変更されない。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+final class ScopeContext extends ChainedInternalContextAdapter implements Defconst.Constants {
+
+    /** フレーム内で削除されたことを示す値 */
+    private static final Object REMOVED = new Object();
+
+    /** フレーム。変数が代入されるまではnull。 */
+    private Map<String,Object> frame_;
+    /** フレームで定義された定数の名前。定数が定義されるまではnull。 */
+    private Set<String> constants_;
+
+    ScopeContext(final InternalContextAdapter innerContext) {
+        super(innerContext);
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.context.ChainedInternalContextAdapter#getInternalUserContext()
+     */
+    @Override
+    public Context getInternalUserContext() {
+        return this;
+    }
+
+    /*(non-Javadoc)
+     * @see jp.techlier.extensions.velocity.directive.Defconst.Constants#defineConstant(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public boolean defineConstant(final String key, final Object value) {
+        if (isConstant(key)) {
+            return false;
+        }
+        put(key, value);
+        if (constants_ == null) {
+            constants_ = new HashSet<String>();
+        }
+        constants_.add(key);
+        return true;
+    }
+
+    private boolean isConstant(final Object key) {
+        return constants_ != null && constants_.contains(key);
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.context.ChainedInternalContextAdapter#get(java.lang.String)
+     */
+    @Override
+    public Object get(final String key) {
+        if (frame_ != null) {
+            final Object value = frame_.get(key);
+            if (value != null || frame_.containsKey(key)) {
+                return value != REMOVED ? value : null;
+            }
+        }
+        return innerContext.get(key);
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.context.ChainedInternalContextAdapter#put(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public Object put(final String key, final Object value) {
+        if (isConstant(key)) {
+            return null;
+        }
+        if (frame_ == null) {
+            frame_ = new HashMap<String,Object>();
+        }
+        final Object previous = frame_.put(key, value);
+        return previous != REMOVED ? previous : null;
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.context.ChainedInternalContextAdapter#localPut(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public Object localPut(final String key, final Object value) {
+        return put(key, value);
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.context.ChainedInternalContextAdapter#containsKey(java.lang.Object)
+     */
+    @Override
+    public boolean containsKey(final Object key) {
+        if (frame_ != null && frame_.containsKey(key)) {
+            return frame_.get(key) != REMOVED;
+        }
+        return innerContext.containsKey(key);
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.context.ChainedInternalContextAdapter#getKeys()
+     */
+    @Override
+    public Object[] getKeys() {
+        if (frame_ == null) {
+            return innerContext.getKeys();
+        }
+        final Set<Object> keys = new LinkedHashSet<Object>();
+        for (final Object key: innerContext.getKeys()) {
+            keys.add(key);
+        }
+        for (final Map.Entry<String,Object> entry: frame_.entrySet()) {
+            if (entry.getValue() == REMOVED) {
+                keys.remove(entry.getKey());
+            }
+            else {
+                keys.add(entry.getKey());
+            }
+        }
+        return keys.toArray();
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.context.ChainedInternalContextAdapter#remove(java.lang.Object)
+     */
+    @Override
+    public Object remove(final Object key) {
+        if (isConstant(key)) {
+            return null;
+        }
+        final Object previous = get((String)key);
+        if (frame_ == null) {
+            frame_ = new HashMap<String,Object>();
+        }
+        frame_.put((String)key, REMOVED);
+        return previous;
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.velocity.runtime.RuntimeServices;
+
+
+/**
+ * #import/#displace/#applyによるテンプレート間の依存関係。
+ * <p>
+ * {@link TemplateResolver}が解決した(現在のテンプレート名, 読み込み先)の組を、テンプレートエンジンごとに記録する。
+ * テンプレート名は、"."と".."を取り除いた絶対パスに正規化して記録する。
+ * 一度記録した依存関係は削除しないため、テンプレートの変更で依存しなくなった組も残る。
+ * 影響範囲は実際より広くなることはあっても、狭くなることはない。
+ * ただし、動的な引数によって一つのテンプレートの読み込み先が{@link #MAX_IMPORTS_PER_TEMPLATE}を超えた場合は、
+ * そのテンプレートについて記録した組を破棄してから記録し直す。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+final class TemplateGraph {
+
+    /**
+     * @param rsvc {@link RuntimeServices}
+     * @return テンプレートエンジンに対応するインスタンス
+     */
+    static TemplateGraph getInstance(final RuntimeServices rsvc) {
+        synchronized (rsvc) {
+            TemplateGraph graph = (TemplateGraph)rsvc.getApplicationAttribute(TemplateGraph.class.getName());
+            if (graph == null) {
+                graph = new TemplateGraph();
+                rsvc.setApplicationAttribute(TemplateGraph.class.getName(), graph);
+            }
+            return graph;
+        }
+    }
+
+
+    /** 一つのテンプレートについて保持する読み込み先の上限 */
+    static final int MAX_IMPORTS_PER_TEMPLATE = 1024;
+
+    /** テンプレート名から、それが読み込むテンプレート名の集合 */
+    private final ConcurrentMap<String,Set<String>> imports_ = new ConcurrentHashMap<String,Set<String>>();
+    /** テンプレート名から、それを読み込むテンプレート名の集合 */
+    private final ConcurrentMap<String,Set<String>> importers_ = new ConcurrentHashMap<String,Set<String>>();
+
+    private TemplateGraph() {
+    }
+
+    /**
+     * @param templateName 読み込む側のテンプレート名
+     * @param importingName 読み込まれるテンプレート名
+     */
+    void add(final String templateName, final String importingName) {
+        final String from = normalize(templateName);
+        final String to = normalize(importingName);
+        final Set<String> imports = edges(imports_, from);
+        if (imports.size() >= MAX_IMPORTS_PER_TEMPLATE && !imports.contains(to)) {
+            for (final String name: imports) {
+                final Set<String> importers = importers_.get(name);
+                if (importers != null) {
+                    importers.remove(from);
+                    if (importers.isEmpty()) {
+                        importers_.remove(name, importers);
+                    }
+                }
+            }
+            imports.clear();
+        }
+        imports.add(to);
+        edges(importers_, to).add(from);
+    }
+
+    /**
+     * @param templateName テンプレート名
+     * @return "."と".."を取り除いたテンプレート名
+     */
+    static String normalize(final String templateName) {
+        if (templateName.indexOf("./") < 0 && !templateName.endsWith("/.") && !templateName.endsWith("/..")) {
+            return templateName;
+        }
+        final LinkedList<String> segments = new LinkedList<String>();
+        for (final String segment: templateName.split("/", -1)) {
+            if (segment.equals("..")) {
+                if (!segments.isEmpty() && segments.getLast().length() > 0) {
+                    segments.removeLast();
+                }
+            }
+            else if (!segment.equals(".")) {
+                segments.add(segment);
+            }
+        }
+        return StringUtils.join(segments, "/");
+    }
+
+    private static Set<String> edges(final ConcurrentMap<String,Set<String>> map, final String name) {
+        Set<String> edges = map.get(name);
+        if (edges == null) {
+            final Set<String> newEdges = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+            edges = map.putIfAbsent(name, newEdges);
+            if (edges == null) {
+                edges = newEdges;
+            }
+        }
+        return edges;
+    }
+
+    /**
+     * @param templateName テンプレート名
+     * @return templateNameと、それを直接または間接に読み込むテンプレート名の集合
+     */
+    SortedSet<String> getDependents(final String templateName) {
+        final SortedSet<String> dependents = new TreeSet<String>();
+        final Deque<String> queue = new ArrayDeque<String>();
+        dependents.add(normalize(templateName));
+        queue.add(normalize(templateName));
+        while (!queue.isEmpty()) {
+            final Set<String> importers = importers_.get(queue.remove());
+            if (importers != null) {
+                for (final String importer: importers) {
+                    if (dependents.add(importer)) {
+                        queue.add(importer);
+                    }
+                }
+            }
+        }
+        return dependents;
+    }
+
+    /**
+     * currentTemplateNameがimportingTemplateNameを読み込むとき、読み込み先から元のテンプレートへ戻る経路を探す。
+     * @param currentTemplateName 読み込む側のテンプレート名
+     * @param importingTemplateName 読み込まれるテンプレート名
+     * @return 循環するテンプレート名の列(読み込む側で始まり、読み込む側で終わる)。循環しない場合はnull。
+     */
+    List<String> findCycle(final String currentTemplateName, final String importingTemplateName) {
+        final String templateName = normalize(currentTemplateName);
+        final String importingName = normalize(importingTemplateName);
+        final Map<String,String> parents = new HashMap<String,String>();
+        final Deque<String> queue = new ArrayDeque<String>();
+        parents.put(importingName, templateName);
+        queue.add(importingName);
+        while (!queue.isEmpty()) {
+            final String name = queue.remove();
+            if (name.equals(templateName)) {
+                final LinkedList<String> cycle = new LinkedList<String>();
+                cycle.addFirst(name);
+                for (String parent = parents.get(name); ; parent = parents.get(parent)) {
+                    cycle.addFirst(parent);
+                    if (parent.equals(templateName)) {
+                        return cycle;
+                    }
+                }
+            }
+            final Set<String> imports = imports_.get(name);
+            if (imports != null) {
+                for (final String next: imports) {
+                    if (!parents.containsKey(next)) {
+                        parents.put(next, name);
+                        queue.add(next);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+}
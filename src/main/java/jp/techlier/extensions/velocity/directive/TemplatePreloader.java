@@ -0,0 +1,215 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.app.Velocity;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.log.Log;
+
+import static jp.techlier.extensions.velocity.directive.DirectiveConstants.*;
+
+
+/**
+ * ファイルリソースローダーのパスにあるテンプレートを、複数のスレッドで事前にパースする。
+ * <p>
+ * パース時に各ディレクティブのinitが実行されるため、引数の誤りなどは最初の描画を待たずに検出される。
+ * テンプレート名は#import/#applyと同じく、パスからの相対パスに'/'を前置したものとする。
+ * スレッド数はdirective.preload.threads(default = プロセッサ数)で指定する。
+ * パース結果はfile.resource.loader.cache = trueの場合にのみ再利用される。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+abstract class TemplatePreloader {
+
+    static TemplatePreloader of(final VelocityEngine engine) {
+        return new TemplatePreloader() {
+            @Override
+            Object getProperty(final String key) {
+                return engine.getProperty(key);
+            }
+            @Override
+            Template getTemplate(final String name) throws Exception {
+                return engine.getTemplate(name);
+            }
+            @Override
+            Log getLog() {
+                return engine.getLog();
+            }
+            @Override
+            void init() throws Exception {
+                engine.init();
+            }
+        };
+    }
+
+    static TemplatePreloader ofSingleton() {
+        return new TemplatePreloader() {
+            @Override
+            Object getProperty(final String key) {
+                return Velocity.getProperty(key);
+            }
+            @Override
+            Template getTemplate(final String name) throws Exception {
+                return Velocity.getTemplate(name);
+            }
+            @Override
+            Log getLog() {
+                return Velocity.getLog();
+            }
+            @Override
+            void init() throws Exception {
+                Velocity.init();
+            }
+        };
+    }
+
+
+    abstract Object getProperty(String key);
+    abstract Template getTemplate(String name) throws Exception;
+    abstract Log getLog();
+    abstract void init() throws Exception;
+
+
+    /**
+     * テンプレートをパースし、テンプレートエンジンのキャッシュに載せる。
+     * @return パースに失敗したテンプレート名と例外。すべて成功した場合は空。
+     */
+    Map<String,Exception> preload() throws Exception {
+        init();
+        if (!Boolean.valueOf(String.valueOf(getProperty(RuntimeConstants.FILE_RESOURCE_LOADER_CACHE)).trim())) {
+            getLog().warn("Preload: " + RuntimeConstants.FILE_RESOURCE_LOADER_CACHE + " is not true; preloaded templates are not reused.");
+        }
+        final Collection<String> templateNames = findTemplateNames();
+        final int threads = Math.min(getThreads(), Math.max(templateNames.size(), 1));
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count_ = new AtomicInteger();
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "veloext-preload-" + count_.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            final Map<String,Future<Template>> futures = new LinkedHashMap<String,Future<Template>>();
+            for (final String templateName: templateNames) {
+                futures.put(templateName, executor.submit(new Callable<Template>() {
+                    @Override
+                    public Template call() throws Exception {
+                        return getTemplate(templateName);
+                    }
+                }));
+            }
+            final SortedMap<String,Exception> failures = new TreeMap<String,Exception>();
+            for (final Map.Entry<String,Future<Template>> future: futures.entrySet()) {
+                try {
+                    future.getValue().get();
+                } catch (ExecutionException e) {
+                    if (!(e.getCause() instanceof Exception)) {
+                        throw e;
+                    }
+                    failures.put(future.getKey(), (Exception)e.getCause());
+                    getLog().error("Preload: " + future.getKey() + ": " + e.getCause().getMessage());
+                }
+            }
+            getLog().info("Preload: " + (templateNames.size() - failures.size()) + " of "
+                          + templateNames.size() + " templates parsed with " + threads + " threads.");
+            return Collections.unmodifiableSortedMap(failures);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private int getThreads() {
+        final Object threads = getProperty(PRELOAD_THREADS);
+        int value = 0;
+        if (threads != null) {
+            try {
+                value = Integer.parseInt(threads.toString().trim());
+            } catch (NumberFormatException e) {
+                getLog().warn("Preload: " + PRELOAD_THREADS + " is not a number: " + threads
+                              + "; the number of processors is used.");
+            }
+        }
+        return value > 0 ? value : Runtime.getRuntime().availableProcessors();
+    }
+
+    private Collection<String> findTemplateNames() {
+        final Object suffix = getProperty(PRELOAD_SUFFIX);
+        final String templateSuffix = suffix != null ? suffix.toString() : DEFAULT_PRELOAD_SUFFIX;
+        final Collection<String> templateNames = new TreeSet<String>();
+        for (final String path: getPaths(getProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH))) {
+            find(new File(path), "/", templateSuffix, templateNames);
+        }
+        return templateNames;
+    }
+
+    private static List<String> getPaths(final Object value) {
+        final List<String> paths = new ArrayList<String>();
+        if (value instanceof Collection) {
+            for (final Object path: (Collection<?>)value) {
+                paths.add(path.toString().trim());
+            }
+        }
+        else if (value != null) {
+            for (final String path: value.toString().split(",")) {
+                paths.add(path.trim());
+            }
+        }
+        return paths;
+    }
+
+    private static void find(final File directory, final String prefix,
+                             final String suffix, final Collection<String> templateNames) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file: files) {
+            if (file.isDirectory()) {
+                find(file, prefix + file.getName() + "/", suffix, templateNames);
+            }
+            else if (file.getName().endsWith(suffix)) {
+                templateNames.add(prefix + file.getName());
+            }
+        }
+    }
+
+}
@@ -0,0 +1,248 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.parser.node.Node;
+import org.apache.velocity.runtime.resource.loader.ResourceLoader;
+
+
+/**
+ * #import()の引数から、取り込むテンプレートを解決する。
+ * <p>
+ * (現在のテンプレート名, 引数)の組から絶対パスへの変換結果と、絶対パスごとのテンプレートを、
+ * テンプレートエンジンごとに保持する。
+ * 保持したテンプレートは、リソースマネージャの更新確認の時期が来るまで再利用し、
+ * 時期が来たらリソースマネージャから取得し直すことで、再読み込みに追随する。
+ * キャッシュが無効なリソースローダーのテンプレートは保持しない。
+ * </p>
+ * <p>
+ * #displace()のために、テンプレートの存在確認の結果も保持する。
+ * {@link #invalidate()}を呼び出すと、それまでの存在確認の結果はすべて無効になる。
+ * 解決した組は{@link TemplateGraph}に依存関係として記録する。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+final class TemplateResolver {
+
+    /**
+     * @param rsvc {@link RuntimeServices}
+     * @return テンプレートエンジンに対応するインスタンス
+     */
+    static TemplateResolver getInstance(final RuntimeServices rsvc) {
+        synchronized (rsvc) {
+            TemplateResolver resolver = (TemplateResolver)rsvc.getApplicationAttribute(TemplateResolver.class.getName());
+            if (resolver == null) {
+                resolver = new TemplateResolver(rsvc);
+                rsvc.setApplicationAttribute(TemplateResolver.class.getName(), resolver);
+            }
+            return resolver;
+        }
+    }
+
+
+    /**
+     * 絶対パスで指定されたテンプレートへの参照。
+     */
+    static final class Handle {
+        private final TemplateResolver resolver_;
+        private final String name_;
+        private volatile Template template_;
+        private volatile Existence existence_;
+        private volatile EncodedText encodedText_;
+
+        Handle(final TemplateResolver resolver, final String name) {
+            resolver_ = resolver;
+            name_ = name;
+        }
+
+        String getName() {
+            return name_;
+        }
+
+        /**
+         * @param encoding 入力エンコーディング
+         * @return テンプレート
+         */
+        Template getTemplate(final String encoding) throws Exception {
+            Template template = template_;
+            if (template != null && !template.requiresChecking()
+                    && encoding.equals(template.getEncoding())) {
+                return template;
+            }
+            template = resolver_.rsvc_.getTemplate(name_, encoding);
+            final ResourceLoader loader = template.getResourceLoader();
+            template_ = loader != null && loader.isCachingOn() ? template : null;
+            return template;
+        }
+
+        /**
+         * @param ttl 存在確認の結果を保持する期間(ミリ秒)。0の場合は保持しない。負の場合は無期限。
+         * @return テンプレートが存在する場合はtrue
+         */
+        boolean exists(final long ttl) {
+            if (ttl == 0) {
+                return resolver_.rsvc_.getLoaderNameForResource(name_) != null;
+            }
+            final int generation = resolver_.generation_;
+            Existence existence = existence_;
+            if (existence == null || existence.generation_ != generation
+                    || (ttl > 0 && System.currentTimeMillis() >= existence.expires_)) {
+                existence = new Existence(resolver_.rsvc_.getLoaderNameForResource(name_) != null,
+                                          ttl > 0 ? System.currentTimeMillis() + ttl : Long.MAX_VALUE,
+                                          generation);
+                existence_ = existence;
+            }
+            return existence.exists_;
+        }
+
+        /**
+         * @param template このテンプレート名で取得したテンプレート
+         * @return テンプレートのテキストをエンコード済みのバイト列として保持するインスタンス
+         */
+        EncodedText getEncodedText(final Template template) {
+            EncodedText encodedText = encodedText_;
+            if (encodedText == null || encodedText.getNode() != template.getData()) {
+                encodedText = new EncodedText(resolver_.rsvc_, (Node)template.getData());
+                encodedText_ = encodedText;
+            }
+            return encodedText;
+        }
+
+        void forgetExistence() {
+            existence_ = null;
+        }
+
+        void forget() {
+            template_ = null;
+            existence_ = null;
+            encodedText_ = null;
+        }
+    }
+
+    private static final class Existence {
+        final boolean exists_;
+        final long expires_;
+        final int generation_;
+
+        Existence(final boolean exists, final long expires, final int generation) {
+            exists_ = exists;
+            expires_ = expires;
+            generation_ = generation;
+        }
+    }
+
+
+    /** 一つのテンプレート内で保持する、動的な引数の解決結果の上限 */
+    private static final int MAX_NAMES_PER_TEMPLATE = 1024;
+    /** 保持するテンプレートへの参照の上限 */
+    private static final int MAX_HANDLES = 8192;
+
+    private final RuntimeServices rsvc_;
+    private final TemplateGraph graph_;
+    private final ConcurrentMap<String,ConcurrentMap<String,Handle>> names_ =
+            new ConcurrentHashMap<String,ConcurrentMap<String,Handle>>();
+    private final ConcurrentMap<String,Handle> handles_ = new ConcurrentHashMap<String,Handle>();
+    /** {@link #invalidate()}のたびに更新される世代番号 */
+    private volatile int generation_;
+
+    private TemplateResolver(final RuntimeServices rsvc) {
+        rsvc_ = rsvc;
+        graph_ = TemplateGraph.getInstance(rsvc);
+    }
+
+    /**
+     * @param currentTemplateName 基準となるテンプレート名
+     * @param templateName テンプレート名。'/'で始まらない場合はcurrentTemplateNameからの相対パスとみなす。
+     * @return テンプレートへの参照。templateNameがnullの場合はnull。
+     */
+    Handle resolve(final String currentTemplateName, final String templateName) {
+        if (templateName == null) {
+            return null;
+        }
+        ConcurrentMap<String,Handle> names = names_.get(currentTemplateName);
+        if (names == null) {
+            names = new ConcurrentHashMap<String,Handle>();
+            final ConcurrentMap<String,Handle> existing = names_.putIfAbsent(currentTemplateName, names);
+            if (existing != null) {
+                names = existing;
+            }
+        }
+        Handle handle = names.get(templateName);
+        if (handle == null) {
+            handle = getHandle(TemplateGraph.normalize(Import.getAbstructTemplateName(currentTemplateName, templateName)));
+            graph_.add(currentTemplateName, handle.getName());
+            if (names.size() >= MAX_NAMES_PER_TEMPLATE) {
+                names.clear();
+            }
+            names.put(templateName, handle);
+        }
+        return handle;
+    }
+
+    private Handle getHandle(final String name) {
+        Handle handle = handles_.get(name);
+        if (handle == null) {
+            if (handles_.size() >= MAX_HANDLES) {
+                handles_.clear();
+            }
+            final Handle newHandle = new Handle(this, name);
+            handle = handles_.putIfAbsent(name, newHandle);
+            if (handle == null) {
+                handle = newHandle;
+            }
+        }
+        return handle;
+    }
+
+    /**
+     * 同じテンプレートを取り込むすべてのテンプレートで共有される、エンコード済みのテキストを返す。
+     * @param template テンプレート
+     * @return テンプレートのテキストをエンコード済みのバイト列として保持するインスタンス
+     */
+    EncodedText getEncodedText(final Template template) {
+        // 参照が破棄された後も、以後の描画で共有できるよう登録し直す
+        return getHandle(TemplateGraph.normalize(template.getName())).getEncodedText(template);
+    }
+
+    /**
+     * テンプレートの存在確認の結果を無効にする。
+     */
+    synchronized void invalidate() {
+        generation_++;
+    }
+
+    /**
+     * 指定されたテンプレートについて、保持しているテンプレートと存在確認の結果を破棄する。
+     * Velocityのリソースキャッシュは破棄しない。
+     * @param name テンプレート名(絶対パス)
+     */
+    void invalidate(final String name) {
+        final Handle handle = handles_.get(TemplateGraph.normalize(name));
+        if (handle != null) {
+            handle.forget();
+        }
+    }
+
+}
@@ -71,6 +71,7 @@ public class Unset extends Directive {
             throw helper_.newTemplateInitException(node, "requires one or two arguments.");
         }
         helper_.checkArgumentMustBeReference(0);
+        DirectiveMetrics.attach(rsvc, this, node);
     }
 
 
@@ -82,7 +83,8 @@ public class Unset extends Directive {
                           final Writer writer,
                           final Node node) {
         final String referenceName = helper_.getReferenceName(node.jjtGetChild(0));
-        if (helper_.getBooleanArgument(1)) {
+        if (helper_.getBooleanArgument(context, 1)) {
+            // #scope()の内側では、ScopeContextのフレームから削除される
             deepRemove(context.getInternalUserContext(), referenceName);
         }
         else {
@@ -6,6 +6,11 @@ package jp.techlier.extensions.velocity.tools.generic;
 
 /**
  *
+ * <p>
+ * escapeHtml(), escapeXml(), escapeJavaScript()と、それらの前後を引用符で囲むquoteHtml()などは、
+ * 継承したhtml(), xml(), javascript()と異なり、置換表によってASCIIの範囲の文字のみをエスケープする。
+ * エスケープが不要な文字列はそのまま返し、必要な場合は描画時にwriterへ直接出力するオブジェクトを返す。
+ * </p>
  *
  * @since 2012/05/01
  * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
@@ -28,4 +33,86 @@ public class EscapeTool extends org.apache.velocity.tools.generic.EscapeTool {
         return singleQuote(var);
     }
 
+
+    /**
+     * &amp; &lt; &gt; &quot; ' をエスケープする。
+     * @param var 値
+     * @return エスケープした値。varがnullの場合はnull。
+     * @since 1.4
+     */
+    public Object escapeHtml(final Object var) {
+        return escape(Escaper.HTML, var, null);
+    }
+
+    /**
+     * &amp; &lt; &gt; &quot; ' をエスケープする。
+     * @param var 値
+     * @return エスケープした値。varがnullの場合はnull。
+     * @since 1.4
+     */
+    public Object escapeXml(final Object var) {
+        return escape(Escaper.XML, var, null);
+    }
+
+    /**
+     * \ ' " / と制御文字、U+2028, U+2029 をエスケープする。
+     * @param var 値
+     * @return エスケープした値。varがnullの場合はnull。
+     * @since 1.4
+     */
+    public Object escapeJavaScript(final Object var) {
+        return escape(Escaper.JAVASCRIPT, var, null);
+    }
+
+    /**
+     * @param var 値
+     * @return HTMLとしてエスケープし、"で囲んだ値。varがnullの場合はnull。
+     * @since 1.4
+     */
+    public Object quoteHtml(final Object var) {
+        return escape(Escaper.HTML, var, "\"");
+    }
+
+    /**
+     * @param var 値
+     * @return XMLとしてエスケープし、"で囲んだ値。varがnullの場合はnull。
+     * @since 1.4
+     */
+    public Object quoteXml(final Object var) {
+        return escape(Escaper.XML, var, "\"");
+    }
+
+    /**
+     * @param var 値
+     * @return JavaScriptとしてエスケープし、"で囲んだ値。varがnullの場合はnull。
+     * @since 1.4
+     */
+    public Object quoteJavaScript(final Object var) {
+        return escape(Escaper.JAVASCRIPT, var, "\"");
+    }
+
+    /**
+     * @param var 値
+     * @return JavaScriptとしてエスケープし、'で囲んだ値。varがnullの場合はnull。
+     * @since 1.4
+     */
+    public Object singleQuoteJavaScript(final Object var) {
+        return escape(Escaper.JAVASCRIPT, var, "'");
+    }
+
+    private static Object escape(final Escaper escaper, final Object var, final String quote) {
+        if (var == null) {
+            return null;
+        }
+        final String text = var.toString();
+        final int start = escaper.indexOf(text);
+        if (start < 0) {
+            if (quote == null) {
+                return var instanceof String ? var : text;
+            }
+            return new Escaped(escaper, text, text.length(), quote);
+        }
+        return new Escaped(escaper, text, start, quote);
+    }
+
 }
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.tools.generic;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.apache.velocity.context.InternalContextAdapter;
+import org.apache.velocity.runtime.Renderable;
+
+
+/**
+ * エスケープ前の文字列を保持し、描画時にエスケープしながら直接出力する。
+ * <p>
+ * テンプレートの参照として描画される場合は、エスケープ後の文字列を生成しない。
+ * それ以外の用途では、{@link #toString()}がエスケープ後の文字列を返す。
+ * </p>
+ *
+ * @since 1.4
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+final class Escaped implements Renderable {
+
+    private final Escaper escaper_;
+    private final String text_;
+    /** エスケープが必要な最初の文字の位置。必要ない場合は文字列の長さ。 */
+    private final int start_;
+    /** 前後を囲む引用符。囲まない場合はnull。 */
+    private final String quote_;
+
+    Escaped(final Escaper escaper, final String text, final int start, final String quote) {
+        escaper_ = escaper;
+        text_ = text;
+        start_ = start;
+        quote_ = quote;
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.runtime.Renderable#render(org.apache.velocity.context.InternalContextAdapter, java.io.Writer)
+     */
+    @Override
+    public boolean render(final InternalContextAdapter context, final Writer writer) throws IOException {
+        if (quote_ != null) {
+            writer.write(quote_);
+        }
+        escaper_.write(writer, text_, start_);
+        if (quote_ != null) {
+            writer.write(quote_);
+        }
+        return true;
+    }
+
+    /*(non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        final int quotes = quote_ != null ? 2 : 0;
+        final StringBuilder buffer = new StringBuilder(escaper_.length(text_, start_) + quotes);
+        if (quote_ != null) {
+            buffer.append(quote_);
+        }
+        escaper_.append(buffer, text_, start_);
+        if (quote_ != null) {
+            buffer.append(quote_);
+        }
+        return buffer.toString();
+    }
+
+}
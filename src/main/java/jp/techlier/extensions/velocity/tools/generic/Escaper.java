@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.tools.generic;
+
+import java.io.IOException;
+import java.io.Writer;
+
+
+/**
+ * 置換表による文字のエスケープ。
+ * <p>
+ * ASCIIの範囲の文字は置換表を引いて置換する。
+ * それ以外の文字はそのまま出力する(JavaScriptの行区切り文字U+2028, U+2029を除く)。
+ * </p>
+ *
+ * @since 1.4
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+final class Escaper {
+
+    private static final int TABLE_SIZE = 128;
+    private static final String LINE_SEPARATOR = "\\u2028";
+    private static final String PARAGRAPH_SEPARATOR = "\\u2029";
+
+    /** &amp; &lt; &gt; &quot; ' */
+    static final Escaper HTML;
+    /** &amp; &lt; &gt; &quot; &apos; */
+    static final Escaper XML;
+    /** \ ' " / と制御文字、U+2028, U+2029 */
+    static final Escaper JAVASCRIPT;
+
+    static {
+        final String[] html = new String[TABLE_SIZE];
+        html['&'] = "&amp;";
+        html['<'] = "&lt;";
+        html['>'] = "&gt;";
+        html['"'] = "&quot;";
+        html['\''] = "&#39;";
+        HTML = new Escaper(html, false);
+
+        final String[] xml = html.clone();
+        xml['\''] = "&apos;";
+        XML = new Escaper(xml, false);
+
+        final String[] javascript = new String[TABLE_SIZE];
+        for (char c = 0; c < ' '; c++) {
+            javascript[c] = unicodeEscape(c);
+        }
+        javascript['\b'] = "\\b";
+        javascript['\t'] = "\\t";
+        javascript['\n'] = "\\n";
+        javascript['\f'] = "\\f";
+        javascript['\r'] = "\\r";
+        javascript['\\'] = "\\\\";
+        javascript['\''] = "\\'";
+        javascript['"'] = "\\\"";
+        javascript['/'] = "\\/";
+        javascript[0x7f] = unicodeEscape((char)0x7f);
+        JAVASCRIPT = new Escaper(javascript, true);
+    }
+
+    private static String unicodeEscape(final char c) {
+        final String hex = Integer.toHexString(c).toUpperCase();
+        return "\\u0000".substring(0, 6 - hex.length()) + hex;
+    }
+
+
+    private final String[] table_;
+    private final boolean escapeLineSeparators_;
+
+    private Escaper(final String[] table, final boolean escapeLineSeparators) {
+        table_ = table;
+        escapeLineSeparators_ = escapeLineSeparators;
+    }
+
+    private String replacement(final char c) {
+        if (c < TABLE_SIZE) {
+            return table_[c];
+        }
+        if (escapeLineSeparators_) {
+            if (c == '\u2028') return LINE_SEPARATOR;
+            if (c == '\u2029') return PARAGRAPH_SEPARATOR;
+        }
+        return null;
+    }
+
+    /**
+     * @param text 文字列
+     * @return エスケープが必要な最初の文字の位置。必要ない場合は-1。
+     */
+    int indexOf(final String text) {
+        final int length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (replacement(text.charAt(i)) != null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param text 文字列
+     * @param start エスケープが必要な最初の文字の位置
+     * @return エスケープ後の文字数
+     */
+    int length(final String text, final int start) {
+        int length = text.length();
+        for (int i = start; i < text.length(); i++) {
+            final String replacement = replacement(text.charAt(i));
+            if (replacement != null) {
+                length += replacement.length() - 1;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * textのstart以降をエスケープして出力する。start以前はそのまま出力する。
+     */
+    void write(final Writer writer, final String text, final int start) throws IOException {
+        final int length = text.length();
+        int written = 0;
+        for (int i = start; i < length; i++) {
+            final String replacement = replacement(text.charAt(i));
+            if (replacement != null) {
+                if (written < i) {
+                    writer.write(text, written, i - written);
+                }
+                writer.write(replacement);
+                written = i + 1;
+            }
+        }
+        if (written < length) {
+            writer.write(text, written, length - written);
+        }
+    }
+
+    /**
+     * textのstart以降をエスケープして追加する。start以前はそのまま追加する。
+     */
+    void append(final StringBuilder buffer, final String text, final int start) {
+        final int length = text.length();
+        int written = 0;
+        for (int i = start; i < length; i++) {
+            final String replacement = replacement(text.charAt(i));
+            if (replacement != null) {
+                buffer.append(text, written, i);
+                buffer.append(replacement);
+                written = i + 1;
+            }
+        }
+        buffer.append(text, written, length);
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * {@link ByteBufferWriter}が用いる、同じ大きさのByteBufferのプール。
+ * <p>
+ * バッファはヒープ上に確保するため、OutputStreamへは複写せずに配列のまま書き出せる。
+ * プールに保持するバッファの数には上限があり、上限を超えて返却されたバッファは破棄される。
+ * スレッドセーフである。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+public final class ByteBufferPool {
+
+    public static final int DEFAULT_CHUNK_SIZE = 8 * 1024;
+    public static final int DEFAULT_MAX_POOLED = 512;
+
+    private static final ByteBufferPool DEFAULT = new ByteBufferPool(DEFAULT_CHUNK_SIZE, DEFAULT_MAX_POOLED);
+
+    /**
+     * @return 8KiBのバッファを512個まで保持する、共有のプール
+     */
+    public static ByteBufferPool getDefault() {
+        return DEFAULT;
+    }
+
+
+    private final int chunkSize_;
+    private final int maxPooled_;
+    private final Queue<ByteBuffer> buffers_ = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicInteger pooled_ = new AtomicInteger();
+
+    /**
+     * @param chunkSize バッファの大きさ(バイト数)。4以上。
+     * @param maxPooled プールに保持するバッファの数の上限
+     */
+    public ByteBufferPool(final int chunkSize, final int maxPooled) {
+        if (chunkSize < 4) {
+            throw new IllegalArgumentException("chunkSize must be at least 4: " + chunkSize);
+        }
+        chunkSize_ = chunkSize;
+        maxPooled_ = maxPooled;
+    }
+
+    public int getChunkSize() {
+        return chunkSize_;
+    }
+
+    /**
+     * @return プールに保持されているバッファの数
+     */
+    public int size() {
+        return pooled_.get();
+    }
+
+    /**
+     * @return 空のバッファ
+     */
+    public ByteBuffer acquire() {
+        final ByteBuffer buffer = buffers_.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(chunkSize_);
+        }
+        pooled_.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @param buffer {@link #acquire()}で得たバッファ。返却後は使用しないこと。
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer.capacity() != chunkSize_ || !buffer.hasArray()) {
+            return;
+        }
+        if (pooled_.incrementAndGet() > maxPooled_) {
+            pooled_.decrementAndGet();
+            return;
+        }
+        buffers_.offer(buffer);
+    }
+
+}
@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * 書き込まれた文字を、プールから得たByteBufferの列へ直接エンコードして保持するWriter。
+ * <p>
+ * OutputStreamWriterと異なり、描画が終わるまで出力先に書き出さず、
+ * {@link #writeTo(OutputStream)}または{@link #writeTo(WritableByteChannel)}で、
+ * 保持しているバッファを複写せずに書き出す。
+ * UTF-8は表を引かずに直接エンコードし、その他の文字コードはCharsetEncoderでエンコードする。
+ * エンコード済みのバイト列は{@link #writeEncoded(byte[], int, int)}でそのまま書き込める。
+ * エンコードできない文字は、文字コードの置換文字に置き換える。
+ * </p>
+ * <p>
+ * 出力先のチャネルを指定した場合は、{@link #flush()}と{@link #checkpoint()}のたびに、
+ * それまでの内容をチャネルへ書き出してバッファを再利用する。
+ * #block/#importは描画の区切りでcheckpoint()を呼び出すため、ページ全体の描画を待たずに出力が進む。
+ * </p>
+ * <p>
+ * 使い終わったら{@link #release()}でバッファをプールへ返却すること。
+ * スレッドセーフではない。
+ * </p>
+ * <pre>
+ * ByteBufferWriter writer = new ByteBufferWriter(ByteBufferPool.getDefault(), "UTF-8");
+ * try {
+ *     template.merge(context, writer);
+ *     writer.writeTo(response.getOutputStream());
+ * } finally {
+ *     writer.release();
+ * }
+ * </pre>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+public final class ByteBufferWriter extends Writer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final CharBuffer EMPTY = CharBuffer.allocate(0);
+    /** UTF-8でエンコードできない文字(対のないサロゲート)の置換文字 */
+    private static final byte REPLACEMENT = '?';
+
+    private final ByteBufferPool pool_;
+    private final Charset charset_;
+    /** UTF-8以外の文字コードの場合のエンコーダ */
+    private final CharsetEncoder encoder_;
+    /** 逐次書き出す出力先。ない場合はnull。 */
+    private final WritableByteChannel channel_;
+
+    /** 書き込み済みのバッファ。positionまでが内容。 */
+    private final List<ByteBuffer> chunks_ = new ArrayList<ByteBuffer>();
+    /** 書き込み中のバッファ。最初の書き込みまではnull。 */
+    private ByteBuffer buffer_;
+    private byte[] array_;
+    private int position_;
+    private int end_;
+    /** 前回の書き込みの末尾にあった上位サロゲート。ない場合は0。 */
+    private char pendingSurrogate_;
+
+    /**
+     * @param pool バッファを得るプール
+     * @param charsetName 文字コード
+     */
+    public ByteBufferWriter(final ByteBufferPool pool, final String charsetName) {
+        this(pool, Charset.forName(charsetName));
+    }
+
+    /**
+     * @param pool バッファを得るプール
+     * @param charset 文字コード
+     */
+    public ByteBufferWriter(final ByteBufferPool pool, final Charset charset) {
+        this(pool, charset, null);
+    }
+
+    /**
+     * @param pool バッファを得るプール
+     * @param charsetName 文字コード
+     * @param channel {@link #flush()}と{@link #checkpoint()}で内容を書き出す出力先
+     */
+    public ByteBufferWriter(final ByteBufferPool pool, final String charsetName, final WritableByteChannel channel) {
+        this(pool, Charset.forName(charsetName), channel);
+    }
+
+    /**
+     * @param pool バッファを得るプール
+     * @param charset 文字コード
+     * @param channel {@link #flush()}と{@link #checkpoint()}で内容を書き出す出力先。ない場合はnull。
+     */
+    public ByteBufferWriter(final ByteBufferPool pool, final Charset charset, final WritableByteChannel channel) {
+        pool_ = pool;
+        charset_ = charset;
+        channel_ = channel;
+        if (UTF_8.equals(charset)) {
+            encoder_ = null;
+        }
+        else {
+            encoder_ = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    }
+
+    public Charset getCharset() {
+        return charset_;
+    }
+
+
+    @Override
+    public void write(final int c) {
+        if (encoder_ != null) {
+            encode(CharBuffer.wrap(new char[] { (char)c }));
+        }
+        else {
+            putUtf8((char)c);
+        }
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) {
+        if (encoder_ != null) {
+            encode(CharBuffer.wrap(cbuf, off, len));
+            return;
+        }
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            final char c = cbuf[i];
+            if (c < 0x80 && pendingSurrogate_ == 0 && position_ < end_) {
+                array_[position_++] = (byte)c;
+            }
+            else {
+                putUtf8(c);
+            }
+        }
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) {
+        if (encoder_ != null) {
+            encode(CharBuffer.wrap(str, off, off + len));
+            return;
+        }
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            final char c = str.charAt(i);
+            if (c < 0x80 && pendingSurrogate_ == 0 && position_ < end_) {
+                array_[position_++] = (byte)c;
+            }
+            else {
+                putUtf8(c);
+            }
+        }
+    }
+
+    @Override
+    public void write(final String str) {
+        write(str, 0, str.length());
+    }
+
+    /**
+     * {@link #getCharset()}でエンコード済みのバイト列を、そのまま書き込む。
+     * 対のない上位サロゲートが残っている場合は、先に置換文字として書き出す。
+     * @param b バイト列
+     * @param off 開始位置
+     * @param len バイト数
+     */
+    public void writeEncoded(final byte[] b, int off, int len) {
+        finish();
+        while (len > 0) {
+            if (position_ == end_) {
+                nextChunk();
+            }
+            final int n = Math.min(len, end_ - position_);
+            System.arraycopy(b, off, array_, position_, n);
+            position_ += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * 出力先のチャネルがある場合は、それまでの内容を書き出して、バッファを再利用する。
+     * 末尾の上位サロゲートは、対になる下位サロゲートを待つため書き出さない。
+     */
+    @Override
+    public void flush() throws IOException {
+        if (channel_ == null || buffer_ == null) {
+            return;
+        }
+        write(channel_, buffers());
+        for (final ByteBuffer chunk: chunks_) {
+            pool_.release(chunk);
+        }
+        chunks_.clear();
+        position_ = buffer_.arrayOffset();
+    }
+
+    /**
+     * 描画の区切りで呼び出す。
+     * 出力先のチャネルがあり、バッファ一つ分以上の内容が溜まっている場合は書き出す。
+     */
+    public void checkpoint() throws IOException {
+        if (channel_ != null && !chunks_.isEmpty()) {
+            flush();
+        }
+    }
+
+    /**
+     * 出力先のチャネルがある場合は、末尾の上位サロゲートとエンコーダの内部状態を含めて、内容を書き出す。
+     * チャネルは閉じない。
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel_ != null) {
+            finish();
+            flush();
+        }
+    }
+
+
+    private void putUtf8(final char c) {
+        if (pendingSurrogate_ != 0) {
+            final char high = pendingSurrogate_;
+            pendingSurrogate_ = 0;
+            if (Character.isLowSurrogate(c)) {
+                final int codePoint = Character.toCodePoint(high, c);
+                reserve(4);
+                array_[position_++] = (byte)(0xf0 | (codePoint >> 18));
+                array_[position_++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+                array_[position_++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+                array_[position_++] = (byte)(0x80 | (codePoint & 0x3f));
+                return;
+            }
+            reserve(1);
+            array_[position_++] = REPLACEMENT;
+        }
+        if (c < 0x80) {
+            reserve(1);
+            array_[position_++] = (byte)c;
+        }
+        else if (c < 0x800) {
+            reserve(2);
+            array_[position_++] = (byte)(0xc0 | (c >> 6));
+            array_[position_++] = (byte)(0x80 | (c & 0x3f));
+        }
+        else if (Character.isHighSurrogate(c)) {
+            pendingSurrogate_ = c;
+        }
+        else if (Character.isLowSurrogate(c)) {
+            reserve(1);
+            array_[position_++] = REPLACEMENT;
+        }
+        else {
+            reserve(3);
+            array_[position_++] = (byte)(0xe0 | (c >> 12));
+            array_[position_++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+            array_[position_++] = (byte)(0x80 | (c & 0x3f));
+        }
+    }
+
+    private void encode(final CharBuffer in) {
+        while (pendingSurrogate_ != 0 && in.hasRemaining()) {
+            final CharBuffer pair = CharBuffer.wrap(new char[] { pendingSurrogate_, in.get() });
+            pendingSurrogate_ = 0;
+            encode(pair);
+        }
+        reserve(1);
+        buffer_.position(position_ - buffer_.arrayOffset());
+        while (encoder_.encode(in, buffer_, false).isOverflow()) {
+            position_ = buffer_.arrayOffset() + buffer_.position();
+            nextChunk();
+        }
+        position_ = buffer_.arrayOffset() + buffer_.position();
+        if (in.hasRemaining()) {
+            // 対になる下位サロゲートを待つ上位サロゲート
+            pendingSurrogate_ = in.get();
+        }
+    }
+
+    /**
+     * 書き込み中のバッファにnバイトの空きがなければ、次のバッファに移る。
+     */
+    private void reserve(final int n) {
+        if (end_ - position_ < n) {
+            nextChunk();
+        }
+    }
+
+    private void nextChunk() {
+        if (buffer_ != null) {
+            buffer_.position(position_ - buffer_.arrayOffset());
+            chunks_.add(buffer_);
+        }
+        buffer_ = pool_.acquire();
+        array_ = buffer_.array();
+        position_ = buffer_.arrayOffset();
+        end_ = position_ + buffer_.capacity();
+    }
+
+    /**
+     * 末尾に残った上位サロゲートと、エンコーダの内部状態を書き出す。
+     */
+    private void finish() {
+        if (pendingSurrogate_ != 0) {
+            pendingSurrogate_ = 0;
+            if (encoder_ == null) {
+                reserve(1);
+                array_[position_++] = REPLACEMENT;
+                return;
+            }
+            final byte[] replacement = encoder_.replacement();
+            reserve(replacement.length);
+            System.arraycopy(replacement, 0, array_, position_, replacement.length);
+            position_ += replacement.length;
+        }
+        if (encoder_ != null && buffer_ != null) {
+            buffer_.position(position_ - buffer_.arrayOffset());
+            while (encoder_.encode(EMPTY, buffer_, true).isOverflow() || encoder_.flush(buffer_).isOverflow()) {
+                position_ = buffer_.arrayOffset() + buffer_.position();
+                nextChunk();
+            }
+            position_ = buffer_.arrayOffset() + buffer_.position();
+            encoder_.reset();
+        }
+    }
+
+
+    /**
+     * @return 書き込まれた内容のバイト数
+     */
+    public long size() {
+        long size = 0;
+        for (final ByteBuffer chunk: chunks_) {
+            size += chunk.position();
+        }
+        if (buffer_ != null) {
+            size += position_ - buffer_.arrayOffset();
+        }
+        return size;
+    }
+
+    /**
+     * 保持している内容を、バッファの配列から直接書き出す。内容は保持したまま残る。
+     * 末尾の対のない上位サロゲートは置換文字として書き出される。
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        finish();
+        for (final ByteBuffer chunk: chunks_) {
+            out.write(chunk.array(), chunk.arrayOffset(), chunk.position());
+        }
+        if (buffer_ != null) {
+            out.write(array_, buffer_.arrayOffset(), position_ - buffer_.arrayOffset());
+        }
+    }
+
+    /**
+     * 保持している内容を書き出す。
+     * {@link GatheringByteChannel}の場合は、すべてのバッファをまとめて書き出す。内容は保持したまま残る。
+     */
+    public void writeTo(final WritableByteChannel channel) throws IOException {
+        write(channel, toByteBuffers());
+    }
+
+    private static void write(final WritableByteChannel channel, final ByteBuffer[] buffers) throws IOException {
+        if (channel instanceof GatheringByteChannel) {
+            final GatheringByteChannel gathering = (GatheringByteChannel)channel;
+            int first = 0;
+            while (first < buffers.length) {
+                gathering.write(buffers, first, buffers.length - first);
+                while (first < buffers.length && !buffers[first].hasRemaining()) {
+                    first++;
+                }
+            }
+        }
+        else {
+            for (final ByteBuffer buffer: buffers) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 内容を読み出し可能な状態で参照するバッファの列。内容は複写しない。
+     */
+    public ByteBuffer[] toByteBuffers() {
+        finish();
+        return buffers();
+    }
+
+    private ByteBuffer[] buffers() {
+        final ByteBuffer[] buffers = new ByteBuffer[chunks_.size() + (buffer_ != null ? 1 : 0)];
+        for (int i = 0; i < chunks_.size(); i++) {
+            buffers[i] = (ByteBuffer)chunks_.get(i).duplicate().flip();
+        }
+        if (buffer_ != null) {
+            buffer_.position(position_ - buffer_.arrayOffset());
+            buffers[buffers.length - 1] = (ByteBuffer)buffer_.duplicate().flip();
+        }
+        return buffers;
+    }
+
+    /**
+     * バッファをプールへ返却し、内容を破棄する。以後の書き込みには新たなバッファを用いる。
+     */
+    public void release() {
+        for (final ByteBuffer chunk: chunks_) {
+            pool_.release(chunk);
+        }
+        chunks_.clear();
+        if (buffer_ != null) {
+            pool_.release(buffer_);
+            buffer_ = null;
+            array_ = null;
+            position_ = 0;
+            end_ = 0;
+        }
+        pendingSurrogate_ = 0;
+        if (encoder_ != null) {
+            encoder_.reset();
+        }
+    }
+
+    /**
+     * @return 内容を文字コードでデコードした文字列
+     */
+    @Override
+    public String toString() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int)Math.min(size(), Integer.MAX_VALUE));
+        try {
+            writeTo(out);
+            return out.toString(charset_.name());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
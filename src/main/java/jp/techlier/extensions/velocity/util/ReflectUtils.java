@@ -17,23 +17,174 @@
 package jp.techlier.extensions.velocity.util;
 
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.AccessibleObject;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 
 /**
  * Utilities for accessing to object by reflection.
  * This class was originally written as TestUtils.
+ * <p>
+ * 名前で指定されたフィールド、メソッド、コンストラクタはクラスごとにキャッシュされ、
+ * キャッシュした複製が最初の参照時に一度だけアクセス可能に設定される。
+ * 呼び出し元から渡されたメンバーのアクセス可否は、呼び出し後に元に戻す。
+ * キャッシュはロックを取らずに参照でき、クラスのアンロードを妨げないよう、メモリ不足時に破棄される。
+ * </p>
  *
  * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
  * @since 20090709
  */
 public class ReflectUtils {
 
+    private static final Class<?>[] NO_PARAMETERS = new Class<?>[0];
+
+    /** クラスごとにキャッシュされたメンバー */
+    private static final class Members {
+        final ConcurrentMap<String,Field> fields_ = new ConcurrentHashMap<String,Field>();
+        final ConcurrentMap<MemberKey,Method> methods_ = new ConcurrentHashMap<MemberKey,Method>();
+        final ConcurrentMap<MemberKey,Constructor<?>> constructors_ = new ConcurrentHashMap<MemberKey,Constructor<?>>();
+    }
+
+    private static final class MemberKey {
+        private final String name_;
+        private final Class<?>[] parameterTypes_;
+        private final int hashCode_;
+
+        MemberKey(final String name, final Class<?>[] parameterTypes) {
+            name_ = name;
+            parameterTypes_ = parameterTypes != null ? parameterTypes : NO_PARAMETERS;
+            hashCode_ = name.hashCode() * 31 + Arrays.hashCode(parameterTypes_);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode_;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof MemberKey)) {
+                return false;
+            }
+            final MemberKey other = (MemberKey)obj;
+            return name_.equals(other.name_) && Arrays.equals(parameterTypes_, other.parameterTypes_);
+        }
+    }
+
+    /** クラスを弱参照で保持するキー */
+    private static final class ClassKey extends WeakReference<Class<?>> {
+        private final int hashCode_;
+
+        ClassKey(final Class<?> clazz, final ReferenceQueue<Class<?>> queue) {
+            super(clazz, queue);
+            hashCode_ = System.identityHashCode(clazz);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode_;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ClassKey)) {
+                return false;
+            }
+            final Class<?> clazz = get();
+            return clazz != null && clazz == ((ClassKey)obj).get();
+        }
+    }
+
+    private static final ReferenceQueue<Class<?>> UNLOADED = new ReferenceQueue<Class<?>>();
+
+    /**
+     * キャッシュされたメンバーはクラスを参照するため、値はSoftReferenceで保持する。
+     */
+    private static final ConcurrentMap<ClassKey,Reference<Members>> MEMBERS =
+            new ConcurrentHashMap<ClassKey,Reference<Members>>();
+
+    private static Members members(final Class<?> clazz) {
+        final Reference<Members> reference = MEMBERS.get(new ClassKey(clazz, null));
+        Members members = reference != null ? reference.get() : null;
+        if (members == null) {
+            for (Reference<?> unloaded = UNLOADED.poll(); unloaded != null; unloaded = UNLOADED.poll()) {
+                MEMBERS.remove(unloaded);
+            }
+            // 競合した場合は一方のキャッシュが捨てられるだけで、結果は変わらない
+            members = new Members();
+            MEMBERS.put(new ClassKey(clazz, UNLOADED), new SoftReference<Members>(members));
+        }
+        return members;
+    }
+
+    private static void setAccessible(final AccessibleObject member, final boolean flag) {
+        if (member.isAccessible() != flag) {
+            AccessController.doPrivileged(new PrivilegedAction<Void>() {
+                @Override
+                public Void run() {
+                    member.setAccessible(flag);
+                    return null;
+                }});
+        }
+    }
+
+    private static Field getField(final Class<?> clazz, final String name)
+            throws NoSuchFieldException {
+        final Members members = members(clazz);
+        Field field = members.fields_.get(name);
+        if (field == null) {
+            field = clazz.getDeclaredField(name);
+            setAccessible(field, true);
+            members.fields_.putIfAbsent(name, field);
+        }
+        return field;
+    }
+
+    private static Method getMethod(final Class<?> clazz, final String name,
+                                    final Class<?>[] parameterTypes)
+            throws NoSuchMethodException {
+        final Members members = members(clazz);
+        final MemberKey key = new MemberKey(name, parameterTypes);
+        Method method = members.methods_.get(key);
+        if (method == null) {
+            method = clazz.getDeclaredMethod(name, parameterTypes);
+            setAccessible(method, true);
+            members.methods_.putIfAbsent(key, method);
+        }
+        return method;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Constructor<T> getConstructor(final Class<T> clazz,
+                                                     final Class<?>[] parameterTypes)
+            throws NoSuchMethodException {
+        final Members members = members(clazz);
+        final MemberKey key = new MemberKey("", parameterTypes);
+        Constructor<T> constructor = (Constructor<T>)members.constructors_.get(key);
+        if (constructor == null) {
+            constructor = clazz.getDeclaredConstructor(parameterTypes);
+            setAccessible(constructor, true);
+            members.constructors_.putIfAbsent(key, constructor);
+        }
+        return constructor;
+    }
+
+
     /**
      * reflect処理によって、指定されたオブジェクトのフィールド値を取得する。
      * <p>
@@ -89,7 +240,7 @@ public class ReflectUtils {
             throws ReflectUtilsException {
         final Field field;
         try {
-            field = clazz.getDeclaredField(name);
+            field = getField(clazz, name);
         } catch (final NoSuchFieldException ex) {
             throw new ReflectUtilsException("No such field: "+clazz.getName()+"#"+name, ex);
         }
@@ -98,19 +249,15 @@ public class ReflectUtils {
 
 
     public static Object get(final Object obj, final Field field) {
-        return AccessController.doPrivileged(new PrivilegedAction<Object>() {
-            @Override
-            public Object run() {
-                final boolean previousAccessibility = field.isAccessible();
-                try {
-                    field.setAccessible(true);
-                    return field.get(obj);
-                } catch (final Exception ex) {
-                    throw new ReflectUtilsException(field.toString(), ex);
-                } finally {
-                    field.setAccessible(previousAccessibility);
-                }
-            }});
+        final boolean previousAccessibility = field.isAccessible();
+        try {
+            setAccessible(field, true);
+            return field.get(obj);
+        } catch (final Exception ex) {
+            throw new ReflectUtilsException(field.toString(), ex);
+        } finally {
+            setAccessible(field, previousAccessibility);
+        }
     }
 
 
@@ -173,7 +320,7 @@ public class ReflectUtils {
             throws ReflectUtilsException {
         final Field field;
         try {
-            field = clazz.getDeclaredField(name);
+            field = getField(clazz, name);
         } catch (final NoSuchFieldException ex) {
             throw new ReflectUtilsException("No such field: "+clazz.getName()+"."+name, ex);
         }
@@ -182,20 +329,15 @@ public class ReflectUtils {
 
 
     public static void set(final Object obj, final Field field, final Object value) {
-        AccessController.doPrivileged(new PrivilegedAction<Void>() {
-            @Override
-            public Void run() {
-                final boolean previousAccessibility = field.isAccessible();
-                try {
-                    field.setAccessible(true);
-                    field.set(obj, value);
-                    return null;
-                } catch (final Exception ex) {
-                    throw new ReflectUtilsException(field.toString(), ex);
-                } finally {
-                    field.setAccessible(previousAccessibility);
-                }
-            }});
+        final boolean previousAccessibility = field.isAccessible();
+        try {
+            setAccessible(field, true);
+            field.set(obj, value);
+        } catch (final Exception ex) {
+            throw new ReflectUtilsException(field.toString(), ex);
+        } finally {
+            setAccessible(field, previousAccessibility);
+        }
     }
 
 
@@ -349,7 +491,7 @@ public class ReflectUtils {
 
         final Method method;
         try {
-            method = clazz.getDeclaredMethod(name, parameterTypes);
+            method = getMethod(clazz, name, parameterTypes);
         } catch (final NoSuchMethodException ex) {
             throw new ReflectUtilsException("No such method: "+ex.getMessage(), ex);
         }
@@ -359,26 +501,17 @@ public class ReflectUtils {
 
     public static Object invoke(final Object obj, final Method method, final Object... parameters)
             throws ReflectUtilsException, Exception {
+        final boolean previousAccessibility = method.isAccessible();
         try {
-            return AccessController.doPrivileged(new PrivilegedAction<Object>() {
-                @Override
-                public Object run() {
-                    final boolean previousAccessibility = method.isAccessible();
-                    try {
-                        method.setAccessible(true);
-                        return method.invoke(obj, parameters);
-                    } catch (final Exception ex) {
-                        throw new ReflectUtilsException(method.toString(), ex);
-                    } finally {
-                        method.setAccessible(previousAccessibility);
-                    }
-                }});
-        } catch (final ReflectUtilsException ex) {
-            Throwable cause = ex.getCause();
-            if (cause instanceof InvocationTargetException) {
-                throwCause(cause.getCause());
-            }
-            throw ex;
+            setAccessible(method, true);
+            return method.invoke(obj, parameters);
+        } catch (final InvocationTargetException ex) {
+            throwCause(ex.getCause());
+            throw new ReflectUtilsException(method.toString(), ex);
+        } catch (final Exception ex) {
+            throw new ReflectUtilsException(method.toString(), ex);
+        } finally {
+            setAccessible(method, previousAccessibility);
         }
     }
 
@@ -450,7 +583,7 @@ public class ReflectUtils {
 
         final Constructor<T> constructor;
         try {
-            constructor = clazz.getDeclaredConstructor(parameterTypes);
+            constructor = getConstructor(clazz, parameterTypes);
         } catch (final NoSuchMethodException ex) {
             throw new ReflectUtilsException(
                 "No such constructor: "+ex.getMessage(), ex);
@@ -462,26 +595,17 @@ public class ReflectUtils {
     public static<T> T newInstance(final Constructor<T> constructor,
                                    final Object... args)
             throws ReflectUtilsException, Exception {
+        final boolean previousAccessibility = constructor.isAccessible();
         try {
-            return AccessController.doPrivileged(new PrivilegedAction<T>() {
-                @Override
-                public T run() {
-                    final boolean previousAccessibility = constructor.isAccessible();
-                    try {
-                        constructor.setAccessible(true);
-                        return constructor.newInstance(args);
-                    } catch (final Exception ex) {
-                        throw new ReflectUtilsException(constructor.toString(), ex);
-                    } finally {
-                        constructor.setAccessible(previousAccessibility);
-                    }
-                }});
-        } catch (final ReflectUtilsException ex) {
-            Throwable cause = ex.getCause();
-            if (cause instanceof InvocationTargetException) {
-                throwCause(cause.getCause());
-            }
-            throw ex;
+            setAccessible(constructor, true);
+            return constructor.newInstance(args);
+        } catch (final InvocationTargetException ex) {
+            throwCause(ex.getCause());
+            throw new ReflectUtilsException(constructor.toString(), ex);
+        } catch (final Exception ex) {
+            throw new ReflectUtilsException(constructor.toString(), ex);
+        } finally {
+            setAccessible(constructor, previousAccessibility);
         }
     }
 
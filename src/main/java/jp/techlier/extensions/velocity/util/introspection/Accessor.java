@@ -0,0 +1,45 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.util.introspection;
+
+
+/**
+ * 一つのメソッドを直接呼び出すアクセサ。
+ * <p>
+ * 実装クラスは{@link AccessorGenerator}が実行時に生成する。
+ * 生成されたクラスは別のクラスローダーに定義されるため、このクラスはpublicでなければならない。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+public abstract class Accessor {
+
+    protected Accessor() {
+        super();
+    }
+
+    /**
+     * @param target メソッドを呼び出すオブジェクト。staticメソッドの場合は無視される。
+     * @param args メソッドの引数。型は呼び出し側で確認済みでなければならない。
+     * @return メソッドの戻り値。基本型の場合はラッパー、voidの場合はnull。
+     * @throws Exception メソッドが送出した例外。InvocationTargetExceptionで包まれない。
+     */
+    public abstract Object invoke(Object target, Object[] args) throws Exception;
+
+}
@@ -0,0 +1,446 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.util.introspection;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * メソッドを直接呼び出す{@link Accessor}のクラスを、バイトコードを組み立てて生成する。
+ * <p>
+ * 生成されるinvoke()は、引数の取り出しとキャスト、基本型のアンボクシング、
+ * メソッドの呼び出し、戻り値のボクシングのみからなり、分岐を含まない。
+ * 生成したクラスは、メソッドを宣言したクラスのクラスローダーを親とするクラスローダーに定義する。
+ * そのため、publicなクラスのpublicなメソッドで、引数の型がすべてpublicなものだけを扱う。
+ * </p>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+final class AccessorGenerator {
+
+    private static final String ACCESSOR = Accessor.class.getName();
+    private static final String ACCESSOR_CLASS_PREFIX = ACCESSOR + "$Generated";
+    private static final String INVOKE_DESCRIPTOR = "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;";
+    private static final int MAX_PARAMETERS = 64;
+
+    private static final AtomicInteger SEQUENCE = new AtomicInteger();
+
+    /** 生成したクラスローダー。生成したクラスが使われなくなれば回収される。 */
+    private static final Map<ClassLoader,Reference<AccessorLoader>> LOADERS =
+            new WeakHashMap<ClassLoader,Reference<AccessorLoader>>();
+
+    /** 基本型とラッパー型、アンボクシングのメソッド名 */
+    private static final Map<Class<?>,Object[]> PRIMITIVES = new HashMap<Class<?>,Object[]>();
+    static {
+        PRIMITIVES.put(boolean.class, new Object[] { Boolean.class, "booleanValue" });
+        PRIMITIVES.put(char.class, new Object[] { Character.class, "charValue" });
+        PRIMITIVES.put(byte.class, new Object[] { Byte.class, "byteValue" });
+        PRIMITIVES.put(short.class, new Object[] { Short.class, "shortValue" });
+        PRIMITIVES.put(int.class, new Object[] { Integer.class, "intValue" });
+        PRIMITIVES.put(long.class, new Object[] { Long.class, "longValue" });
+        PRIMITIVES.put(float.class, new Object[] { Float.class, "floatValue" });
+        PRIMITIVES.put(double.class, new Object[] { Double.class, "doubleValue" });
+    }
+
+    private AccessorGenerator() {
+        // no instance
+    }
+
+
+    /**
+     * @param type 型
+     * @return 基本型の場合はラッパー型、それ以外はtypeそのもの
+     */
+    static Class<?> wrap(final Class<?> type) {
+        final Object[] primitive = PRIMITIVES.get(type);
+        return primitive != null ? (Class<?>)primitive[0] : type;
+    }
+
+    /**
+     * @param method メソッド
+     * @return アクセサを生成できる場合はtrue
+     */
+    static boolean isSupported(final Method method) {
+        final Class<?> owner = method.getDeclaringClass();
+        if (!Modifier.isPublic(method.getModifiers()) || !isPublic(owner) || method.isVarArgs()) {
+            return false;
+        }
+        if (owner.isInterface() && Modifier.isStatic(method.getModifiers())) {
+            return false;
+        }
+        final Class<?>[] parameterTypes = method.getParameterTypes();
+        if (parameterTypes.length > MAX_PARAMETERS) {
+            return false;
+        }
+        for (final Class<?> type: parameterTypes) {
+            if (!isPublic(type)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPublic(Class<?> type) {
+        while (type.isArray()) {
+            type = type.getComponentType();
+        }
+        return type.isPrimitive() || Modifier.isPublic(type.getModifiers());
+    }
+
+    /**
+     * @param method {@link #isSupported(Method)}がtrueを返すメソッド
+     * @return methodを直接呼び出すアクセサ
+     */
+    static Accessor generate(final Method method) throws Exception {
+        final String name = ACCESSOR_CLASS_PREFIX + SEQUENCE.incrementAndGet();
+        final byte[] bytes = new ClassWriter(name, method).toByteArray();
+        final Class<?> accessorClass = getLoader(method.getDeclaringClass().getClassLoader()).define(name, bytes);
+        return (Accessor)accessorClass.newInstance();
+    }
+
+    private static AccessorLoader getLoader(final ClassLoader parent) {
+        synchronized (LOADERS) {
+            final Reference<AccessorLoader> reference = LOADERS.get(parent);
+            AccessorLoader loader = reference != null ? reference.get() : null;
+            if (loader == null) {
+                loader = AccessController.doPrivileged(new PrivilegedAction<AccessorLoader>() {
+                    @Override
+                    public AccessorLoader run() {
+                        return new AccessorLoader(parent);
+                    }});
+                LOADERS.put(parent, new WeakReference<AccessorLoader>(loader));
+            }
+            return loader;
+        }
+    }
+
+
+    /**
+     * 生成したアクセサを定義するクラスローダー。
+     * {@link Accessor}は親から見えるとは限らないため、このクラスローダーが直接解決する。
+     */
+    private static final class AccessorLoader extends ClassLoader {
+        AccessorLoader(final ClassLoader parent) {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+            if (ACCESSOR.equals(name)) {
+                return Accessor.class;
+            }
+            return super.loadClass(name, resolve);
+        }
+
+        Class<?> define(final String name, final byte[] bytes) {
+            synchronized (this) {
+                return defineClass(name, bytes, 0, bytes.length);
+            }
+        }
+    }
+
+
+    /**
+     * アクセサのクラスファイルを組み立てる。
+     */
+    private static final class ClassWriter {
+        private static final int ACC_PUBLIC = 0x0001;
+        private static final int ACC_FINAL = 0x0010;
+        private static final int ACC_SUPER = 0x0020;
+
+        private static final int CONSTANT_UTF8 = 1;
+        private static final int CONSTANT_CLASS = 7;
+        private static final int CONSTANT_METHODREF = 10;
+        private static final int CONSTANT_INTERFACE_METHODREF = 11;
+        private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+        private static final int ACONST_NULL = 0x01;
+        private static final int ICONST_0 = 0x03;
+        private static final int BIPUSH = 0x10;
+        private static final int ALOAD_0 = 0x2a;
+        private static final int ALOAD_1 = 0x2b;
+        private static final int ALOAD_2 = 0x2c;
+        private static final int AALOAD = 0x32;
+        private static final int ARETURN = 0xb0;
+        private static final int RETURN = 0xb1;
+        private static final int INVOKEVIRTUAL = 0xb6;
+        private static final int INVOKESPECIAL = 0xb7;
+        private static final int INVOKESTATIC = 0xb8;
+        private static final int INVOKEINTERFACE = 0xb9;
+        private static final int CHECKCAST = 0xc0;
+
+        private final ByteArrayOutputStream pool_ = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut_ = new DataOutputStream(pool_);
+        private final Map<String,Integer> constants_ = new HashMap<String,Integer>();
+        private int poolCount_ = 1;
+
+        private final int thisClass_;
+        private final int superClass_;
+        private final int code_;
+        private final byte[] constructor_;
+        private final byte[] invoke_;
+        private final int constructorName_;
+        private final int constructorDescriptor_;
+        private final int invokeName_;
+        private final int invokeDescriptor_;
+
+        ClassWriter(final String name, final Method method) throws IOException {
+            thisClass_ = classConstant(internalName(name));
+            superClass_ = classConstant(internalName(ACCESSOR));
+            code_ = utf8("Code");
+            constructorName_ = utf8("<init>");
+            constructorDescriptor_ = utf8("()V");
+            invokeName_ = utf8("invoke");
+            invokeDescriptor_ = utf8(INVOKE_DESCRIPTOR);
+            constructor_ = constructorCode();
+            invoke_ = invokeCode(method);
+        }
+
+        private byte[] constructorCode() throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream code = new DataOutputStream(bytes);
+            code.writeByte(ALOAD_0);
+            code.writeByte(INVOKESPECIAL);
+            code.writeShort(methodConstant(CONSTANT_METHODREF, internalName(ACCESSOR), "<init>", "()V"));
+            code.writeByte(RETURN);
+            return codeAttribute(1, 1, bytes.toByteArray());
+        }
+
+        private byte[] invokeCode(final Method method) throws IOException {
+            final Class<?> owner = method.getDeclaringClass();
+            final boolean isStatic = Modifier.isStatic(method.getModifiers());
+            final Class<?>[] parameterTypes = method.getParameterTypes();
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream code = new DataOutputStream(bytes);
+            int slots = 0;
+            if (!isStatic) {
+                code.writeByte(ALOAD_1);
+                code.writeByte(CHECKCAST);
+                code.writeShort(classConstant(internalName(owner)));
+                slots++;
+            }
+            for (int i = 0; i < parameterTypes.length; i++) {
+                code.writeByte(ALOAD_2);
+                if (i <= 5) {
+                    code.writeByte(ICONST_0 + i);
+                }
+                else {
+                    code.writeByte(BIPUSH);
+                    code.writeByte(i);
+                }
+                code.writeByte(AALOAD);
+                final Object[] primitive = PRIMITIVES.get(parameterTypes[i]);
+                if (primitive == null) {
+                    code.writeByte(CHECKCAST);
+                    code.writeShort(classConstant(internalName(parameterTypes[i])));
+                    slots++;
+                }
+                else {
+                    final Class<?> wrapper = (Class<?>)primitive[0];
+                    code.writeByte(CHECKCAST);
+                    code.writeShort(classConstant(internalName(wrapper)));
+                    code.writeByte(INVOKEVIRTUAL);
+                    code.writeShort(methodConstant(CONSTANT_METHODREF, internalName(wrapper),
+                                                   (String)primitive[1], "()" + descriptor(parameterTypes[i])));
+                    slots += isWide(parameterTypes[i]) ? 2 : 1;
+                }
+            }
+
+            final String descriptor = descriptor(method);
+            if (isStatic) {
+                code.writeByte(INVOKESTATIC);
+                code.writeShort(methodConstant(CONSTANT_METHODREF, internalName(owner), method.getName(), descriptor));
+            }
+            else if (owner.isInterface()) {
+                code.writeByte(INVOKEINTERFACE);
+                code.writeShort(methodConstant(CONSTANT_INTERFACE_METHODREF, internalName(owner), method.getName(), descriptor));
+                code.writeByte(slots);
+                code.writeByte(0);
+            }
+            else {
+                code.writeByte(INVOKEVIRTUAL);
+                code.writeShort(methodConstant(CONSTANT_METHODREF, internalName(owner), method.getName(), descriptor));
+            }
+
+            final Class<?> returnType = method.getReturnType();
+            if (returnType == void.class) {
+                code.writeByte(ACONST_NULL);
+            }
+            else if (returnType.isPrimitive()) {
+                final String wrapper = internalName(wrap(returnType));
+                code.writeByte(INVOKESTATIC);
+                code.writeShort(methodConstant(CONSTANT_METHODREF, wrapper, "valueOf",
+                                               "(" + descriptor(returnType) + ")L" + wrapper + ";"));
+            }
+            code.writeByte(ARETURN);
+
+            // 引数の取り出し中は、配列と添字の2つを余分に積む
+            final int maxStack = Math.max(slots + (parameterTypes.length > 0 ? 2 : 0), 2);
+            return codeAttribute(maxStack, 3, bytes.toByteArray());
+        }
+
+        private byte[] codeAttribute(final int maxStack, final int maxLocals, final byte[] code) throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeShort(code_);
+            out.writeInt(2 + 2 + 4 + code.length + 2 + 2);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0);  // exception_table_length
+            out.writeShort(0);  // attributes_count
+            return bytes.toByteArray();
+        }
+
+        byte[] toByteArray() throws IOException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);   // minor_version
+            out.writeShort(50);  // major_version (Java 6)
+            out.writeShort(poolCount_);
+            poolOut_.flush();
+            pool_.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass_);
+            out.writeShort(superClass_);
+            out.writeShort(0);  // interfaces_count
+            out.writeShort(0);  // fields_count
+            out.writeShort(2);  // methods_count
+            writeMethod(out, constructorName_, constructorDescriptor_, constructor_);
+            writeMethod(out, invokeName_, invokeDescriptor_, invoke_);
+            out.writeShort(0);  // attributes_count
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private static void writeMethod(final DataOutputStream out, final int name, final int descriptor,
+                                        final byte[] code) throws IOException {
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);  // attributes_count
+            out.write(code);
+        }
+
+        private int utf8(final String value) throws IOException {
+            final String key = "U" + value;
+            Integer index = constants_.get(key);
+            if (index == null) {
+                poolOut_.writeByte(CONSTANT_UTF8);
+                poolOut_.writeUTF(value);
+                index = add(key);
+            }
+            return index;
+        }
+
+        private int classConstant(final String internalName) throws IOException {
+            final String key = "C" + internalName;
+            Integer index = constants_.get(key);
+            if (index == null) {
+                final int name = utf8(internalName);
+                poolOut_.writeByte(CONSTANT_CLASS);
+                poolOut_.writeShort(name);
+                index = add(key);
+            }
+            return index;
+        }
+
+        private int methodConstant(final int tag, final String owner, final String name,
+                                   final String descriptor) throws IOException {
+            final String key = "M" + tag + owner + "." + name + descriptor;
+            Integer index = constants_.get(key);
+            if (index == null) {
+                final int ownerIndex = classConstant(owner);
+                final int nameIndex = utf8(name);
+                final int descriptorIndex = utf8(descriptor);
+                final String nameAndTypeKey = "N" + name + descriptor;
+                Integer nameAndType = constants_.get(nameAndTypeKey);
+                if (nameAndType == null) {
+                    poolOut_.writeByte(CONSTANT_NAME_AND_TYPE);
+                    poolOut_.writeShort(nameIndex);
+                    poolOut_.writeShort(descriptorIndex);
+                    nameAndType = add(nameAndTypeKey);
+                }
+                poolOut_.writeByte(tag);
+                poolOut_.writeShort(ownerIndex);
+                poolOut_.writeShort(nameAndType);
+                index = add(key);
+            }
+            return index;
+        }
+
+        private int add(final String key) {
+            final int index = poolCount_++;
+            constants_.put(key, index);
+            return index;
+        }
+
+        private static String internalName(final String className) {
+            return className.replace('.', '/');
+        }
+
+        private static String internalName(final Class<?> type) {
+            return type.isArray() ? descriptor(type) : internalName(type.getName());
+        }
+
+        private static boolean isWide(final Class<?> type) {
+            return type == long.class || type == double.class;
+        }
+
+        private static String descriptor(final Method method) {
+            final StringBuilder descriptor = new StringBuilder("(");
+            for (final Class<?> type: method.getParameterTypes()) {
+                descriptor.append(descriptor(type));
+            }
+            return descriptor.append(')').append(descriptor(method.getReturnType())).toString();
+        }
+
+        private static String descriptor(final Class<?> type) {
+            if (type.isArray()) {
+                return internalName(type.getName());
+            }
+            if (type == void.class) return "V";
+            if (type == boolean.class) return "Z";
+            if (type == char.class) return "C";
+            if (type == byte.class) return "B";
+            if (type == short.class) return "S";
+            if (type == int.class) return "I";
+            if (type == long.class) return "J";
+            if (type == float.class) return "F";
+            if (type == double.class) return "D";
+            return "L" + internalName(type.getName()) + ";";
+        }
+    }
+
+}
@@ -0,0 +1,332 @@
+/*
+ * Directive extensions for Apache Velocity.
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package jp.techlier.extensions.velocity.util.introspection;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.parser.node.AbstractExecutor;
+import org.apache.velocity.runtime.parser.node.BooleanPropertyExecutor;
+import org.apache.velocity.runtime.parser.node.PropertyExecutor;
+import org.apache.velocity.util.RuntimeServicesAware;
+import org.apache.velocity.util.introspection.Info;
+import org.apache.velocity.util.introspection.UberspectImpl;
+import org.apache.velocity.util.introspection.VelMethod;
+import org.apache.velocity.util.introspection.VelPropertyGet;
+
+import jp.techlier.extensions.velocity.util.ReflectUtils;
+import jp.techlier.extensions.velocity.util.ReflectUtilsException;
+
+
+/**
+ * 頻繁に呼び出されるメソッドとプロパティを、生成したアクセサで直接呼び出すUberspect。
+ * <p>
+ * メソッドの解決は{@link UberspectImpl}に任せ、解決されたメソッドごとに呼び出し回数を数える。
+ * 呼び出し回数が<code>introspector.accessor.threshold</code>(default = 100)に達したメソッドは、
+ * {@link AccessorGenerator}が生成したアクセサを通して、Method.invoke()を介さずに呼び出す。
+ * アクセサを生成できないメソッド(publicでないクラスのメソッド、可変長引数のメソッドなど)と、
+ * 引数の型がメソッドの宣言と一致しない呼び出しは、従来どおりreflectionで呼び出す。
+ * </p>
+ * <p>
+ * <code>introspector.accessor.enabled = false</code>を指定すると、
+ * アクセサを生成せず、{@link UberspectImpl}と全く同じに動作する。
+ * </p>
+ * <pre>
+ * runtime.introspector.uberspect = jp.techlier.extensions.velocity.util.introspection.AccessorUberspect
+ * </pre>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ * @since 1.4
+ */
+public class AccessorUberspect extends UberspectImpl implements RuntimeServicesAware {
+
+    /** アクセサを生成するか否か */
+    public static final String ACCESSOR_ENABLED = "introspector.accessor.enabled";
+    static final boolean DEFAULT_ACCESSOR_ENABLED = true;
+
+    /** アクセサを生成するまでの呼び出し回数 */
+    public static final String ACCESSOR_THRESHOLD = "introspector.accessor.threshold";
+    static final int DEFAULT_ACCESSOR_THRESHOLD = 100;
+
+
+    /**
+     * 解決されたメソッドごとの呼び出し回数とアクセサ。
+     */
+    static final class Site {
+        private final Method method_;
+        private final Class<?>[] argumentTypes_;
+        private final boolean[] primitive_;
+        private final int threshold_;
+        /** 呼び出し回数。数え落としがあってもよいため同期しない。 */
+        private int calls_;
+        private volatile Accessor accessor_;
+        /** アクセサを生成できない場合はtrue */
+        private volatile boolean reflective_;
+
+        Site(final Method method, final int threshold) {
+            method_ = method;
+            threshold_ = threshold;
+            final Class<?>[] parameterTypes = method.getParameterTypes();
+            argumentTypes_ = new Class<?>[parameterTypes.length];
+            primitive_ = new boolean[parameterTypes.length];
+            for (int i = 0; i < parameterTypes.length; i++) {
+                argumentTypes_[i] = AccessorGenerator.wrap(parameterTypes[i]);
+                primitive_[i] = parameterTypes[i].isPrimitive();
+            }
+            reflective_ = !AccessorGenerator.isSupported(method);
+        }
+
+        Method getMethod() {
+            return method_;
+        }
+
+        /**
+         * 呼び出し回数を数え、閾値に達していればアクセサを生成する。
+         * @return アクセサ。まだ生成していない場合と、生成できない場合はnull。
+         */
+        Accessor getAccessor() {
+            final Accessor accessor = accessor_;
+            if (accessor != null || reflective_ || ++calls_ < threshold_) {
+                return accessor;
+            }
+            return generate();
+        }
+
+        private synchronized Accessor generate() {
+            if (accessor_ == null && !reflective_) {
+                try {
+                    accessor_ = AccessorGenerator.generate(method_);
+                } catch (final Throwable ex) {
+                    disable();
+                }
+            }
+            return accessor_;
+        }
+
+        boolean hasAccessor() {
+            return accessor_ != null;
+        }
+
+        void disable() {
+            reflective_ = true;
+            accessor_ = null;
+        }
+
+        /**
+         * @param args 引数
+         * @return アクセサに渡せる引数の場合はtrue
+         */
+        boolean accepts(final Object[] args) {
+            final int length = args != null ? args.length : 0;
+            if (length != argumentTypes_.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                final Object arg = args[i];
+                if (arg == null ? primitive_[i] : !argumentTypes_[i].isInstance(arg)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * アクセサでメソッドを呼び出す。
+         * @return メソッドの戻り値。呼び出せなかった場合は{@link #FALLBACK}。
+         */
+        Object invoke(final Accessor accessor, final Object target, final Object[] args)
+                throws InvocationTargetException {
+            try {
+                return accessor.invoke(target, args);
+            } catch (final LinkageError ex) {
+                // アクセサ自身のリンクに失敗した場合は、以降reflectionで呼び出す
+                final StackTraceElement[] trace = ex.getStackTrace();
+                if (trace.length > 0 && trace[0].getClassName().equals(accessor.getClass().getName())) {
+                    disable();
+                    return FALLBACK;
+                }
+                throw new InvocationTargetException(ex);
+            } catch (final Throwable ex) {
+                throw new InvocationTargetException(ex);
+            }
+        }
+    }
+
+    /** アクセサで呼び出せなかったことを示す */
+    static final Object FALLBACK = new Object();
+
+
+    /**
+     * アクセサで呼び出すVelMethod。
+     */
+    private static final class AccessorMethod implements VelMethod {
+        private final VelMethod delegate_;
+        private final Site site_;
+
+        AccessorMethod(final VelMethod delegate, final Site site) {
+            delegate_ = delegate;
+            site_ = site;
+        }
+
+        @Override
+        public Object invoke(final Object o, final Object[] params) throws Exception {
+            final Accessor accessor = site_.getAccessor();
+            if (accessor != null && site_.accepts(params)) {
+                final Object result = site_.invoke(accessor, o, params);
+                if (result != FALLBACK) {
+                    return result;
+                }
+            }
+            return delegate_.invoke(o, params);
+        }
+
+        @Override
+        public boolean isCacheable() {
+            return delegate_.isCacheable();
+        }
+
+        @Override
+        public String getMethodName() {
+            return delegate_.getMethodName();
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public Class getReturnType() {
+            return delegate_.getReturnType();
+        }
+    }
+
+    /**
+     * アクセサで呼び出すVelPropertyGet。
+     */
+    private static final class AccessorGetter implements VelPropertyGet {
+        private final VelPropertyGet delegate_;
+        private final Site site_;
+
+        AccessorGetter(final VelPropertyGet delegate, final Site site) {
+            delegate_ = delegate;
+            site_ = site;
+        }
+
+        @Override
+        public Object invoke(final Object o) throws Exception {
+            final Accessor accessor = site_.getAccessor();
+            if (accessor != null) {
+                final Object result = site_.invoke(accessor, o, null);
+                if (result != FALLBACK) {
+                    return result;
+                }
+            }
+            return delegate_.invoke(o);
+        }
+
+        @Override
+        public boolean isCacheable() {
+            return delegate_.isCacheable();
+        }
+
+        @Override
+        public String getMethodName() {
+            return delegate_.getMethodName();
+        }
+    }
+
+
+    private boolean enabled_ = DEFAULT_ACCESSOR_ENABLED;
+    private int threshold_ = DEFAULT_ACCESSOR_THRESHOLD;
+    private final ConcurrentMap<Method,Site> sites_ = new ConcurrentHashMap<Method,Site>();
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.util.RuntimeServicesAware#setRuntimeServices(org.apache.velocity.runtime.RuntimeServices)
+     */
+    @Override
+    public void setRuntimeServices(final RuntimeServices rsvc) {
+        enabled_ = rsvc.getBoolean(ACCESSOR_ENABLED, DEFAULT_ACCESSOR_ENABLED);
+        threshold_ = rsvc.getInt(ACCESSOR_THRESHOLD, DEFAULT_ACCESSOR_THRESHOLD);
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.util.introspection.UberspectImpl#getMethod(java.lang.Object, java.lang.String, java.lang.Object[], org.apache.velocity.util.introspection.Info)
+     */
+    @Override
+    public VelMethod getMethod(final Object obj, final String methodName,
+                               final Object[] args, final Info i) throws Exception {
+        final VelMethod method = super.getMethod(obj, methodName, args, i);
+        if (!enabled_ || method == null || method.getClass() != VelMethodImpl.class
+                || obj.getClass().isArray()) {
+            return method;
+        }
+        final Site site = getSite((Method)reflect(VelMethodImpl.class, method, "method"));
+        return site != null ? new AccessorMethod(method, site) : method;
+    }
+
+    /*(non-Javadoc)
+     * @see org.apache.velocity.util.introspection.UberspectImpl#getPropertyGet(java.lang.Object, java.lang.String, org.apache.velocity.util.introspection.Info)
+     */
+    @Override
+    public VelPropertyGet getPropertyGet(final Object obj, final String identifier,
+                                         final Info i) throws Exception {
+        final VelPropertyGet getter = super.getPropertyGet(obj, identifier, i);
+        if (!enabled_ || getter == null || getter.getClass() != VelGetterImpl.class) {
+            return getter;
+        }
+        final AbstractExecutor executor = (AbstractExecutor)reflect(VelGetterImpl.class, getter, "getExecutor");
+        if (!(executor instanceof PropertyExecutor || executor instanceof BooleanPropertyExecutor)) {
+            return getter;
+        }
+        final Site site = getSite(executor.getMethod());
+        return site != null ? new AccessorGetter(getter, site) : getter;
+    }
+
+    /**
+     * Velocityの内部構造が想定と異なる場合は、アクセサの生成をやめる。
+     */
+    private Object reflect(final Class<?> clazz, final Object obj, final String name) {
+        try {
+            return ReflectUtils.get(clazz, obj, name);
+        } catch (final ReflectUtilsException ex) {
+            log.warn("AccessorUberspect: falling back to reflection", ex);
+            enabled_ = false;
+            return null;
+        }
+    }
+
+    /**
+     * @param method メソッド
+     * @return メソッドに対応するSite。アクセサを生成できない場合はnull。
+     */
+    Site getSite(final Method method) {
+        if (method == null) {
+            return null;
+        }
+        Site site = sites_.get(method);
+        if (site == null) {
+            site = new Site(method, threshold_);
+            final Site existing = sites_.putIfAbsent(method, site);
+            if (existing != null) {
+                site = existing;
+            }
+        }
+        return site.reflective_ ? null : site;
+    }
+
+}
@@ -3,12 +3,80 @@
  */
 package jp.techlier.extensions.velocity.directive;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.runtime.RuntimeConstants;
+
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
 
 /**
  * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
  */
 public class ApplyTest extends DirectiveTestBase {
 
+    @Test
+    public void testApply_undeclaredBlockIsNotEvaluated() throws Exception {
+        String template = "#apply('/examples/base.vm')"
+                + "#block('block1')#set($declared = 'evaluated')#end"
+                + "#block('undeclared')#set($undeclared = 'evaluated')#end"
+                + "#end"
+                + "$!declared/$!undeclared";
+        assertEquals("evaluated/", eval(template));
+    }
+
+    @Test
+    public void testApply_declaredSlotsAreCached() throws Exception {
+        engine_.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_CACHE, "true");
+        eval("#apply('/import.vm')#block('block1')#end#end");
+        final DeclaredBlocks declaredBlocks =
+                (DeclaredBlocks)engine_.getApplicationAttribute(DeclaredBlocks.class.getName());
+        final Template template = engine_.getTemplate("/import.vm", "UTF-8");
+        final BitSet slots = declaredBlocks.getDeclaredSlots(template, "UTF-8");
+        assertNotNull(slots);
+        assertSame(slots, declaredBlocks.getDeclaredSlots(template, "UTF-8"));
+    }
+
+    @Test
+    public void testApply_methodCallOutsideBlockIsEvaluated() throws Exception {
+        context_.put("list", new ArrayList<Object>());
+        String template = "#apply('/examples/base.vm')"
+                + "$list.add('outside')"
+                + "$undefined"
+                + "#set($var = 'evaluated')"
+                + "#block('block1')$list.add('inside')#end"
+                + "#end"
+                + " $list $var";
+        assertEquals("true [outside, inside] evaluated", eval(template));
+    }
+
+    @Test
+    public void testApply_withLateRendering_renderedRepeatedly() throws Exception {
+        engine_.setProperty(DirectiveConstants.BLOCK_LATE_RENDERING, true);
+        for (int i = 0; i < 3; i++) {
+            context_ = new VelocityContext();
+            testExample("test1-extend2.vm");
+        }
+    }
+
+    @Test
+    public void testApply_withLateRendering_notOnlyBlocks() throws Exception {
+        engine_.setProperty(DirectiveConstants.BLOCK_LATE_RENDERING, true);
+        String template = "#apply('/examples/base.vm')"
+                + "#set($var = 'evaluated')"
+                + "#block('block1')$var#end"
+                + "#end";
+        for (int i = 0; i < 2; i++) {
+            context_ = new VelocityContext();
+            assertEquals("evaluated", eval(template));
+        }
+    }
+
 }
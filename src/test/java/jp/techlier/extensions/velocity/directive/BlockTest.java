@@ -7,6 +7,8 @@ import org.apache.velocity.exception.ParseErrorException;
 
 import org.junit.Test;
 
+import static org.junit.Assert.assertEquals;
+
 
 /**
  * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
@@ -31,6 +33,42 @@ public class BlockTest extends DirectiveTestBase {
     }
 
 
+    @Test
+    public void testBlock_withReferenceArgument() throws Exception {
+        context_.put("name", "block1");
+        String template = "#apply('/examples/base.vm')"
+                + "#block($name)overridden#end"
+                + "#end";
+        assertEquals("overridden", eval(template));
+    }
+
+
+    @Test
+    public void testBlock_dynamicNamesAreNotRegistered() throws Exception {
+        assertEquals("123", eval("#foreach($i in [1..3])#block(\"dynamic$i\")$i#end#end"));
+        final BlockTable.Slots slots = (BlockTable.Slots)engine_.getApplicationAttribute(BlockTable.Slots.class.getName());
+        assertEquals(-1, slots.find("dynamic1"));
+
+        context_.put("name", "block1");
+        assertEquals("overridden", eval("#apply('/examples/base.vm')#block($name)overridden#end#end"));
+        assertEquals(-1, slots.find("dynamic1"));
+    }
+
+
+    @Test
+    public void testBlock_withLargeContent() throws Exception {
+        String template = "#apply('/examples/base.vm')"
+                + "#block('block1')#foreach($i in [1..10000])0123456789#end#end"
+                + "#end";
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            expected.append("0123456789");
+        }
+        assertEquals(expected.toString(), eval(template));
+        assertEquals(expected.toString(), eval(template));
+    }
+
+
     @Test
     public void testcase1_1() throws Exception {
         testExample("test1-extend1.vm");
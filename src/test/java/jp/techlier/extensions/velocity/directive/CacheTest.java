@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.exception.ParseErrorException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+/**
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+public class CacheTest extends DirectiveTestBase {
+
+    @Test
+    public void testCache() throws Exception {
+        context_.put("list", new ArrayList<Object>());
+        String template = "#cache('key', 60)$list.size()#end";
+        assertEquals("0", eval(template));
+        assertEquals("0", eval("$list.add(1)" + template).substring(4));
+        assertEquals("0", eval(template));
+    }
+
+    @Test
+    public void testCache_withReferenceKey() throws Exception {
+        context_.put("key", "key1");
+        context_.put("value", "value1");
+        String template = "#cache($key, 60)$value#end";
+        assertEquals("value1", eval(template));
+
+        context_.put("value", "value2");
+        assertEquals("value1", eval(template));
+
+        context_.put("key", "key2");
+        assertEquals("value2", eval(template));
+    }
+
+    @Test
+    public void testCache_expired() throws Exception {
+        context_.put("value", "value1");
+        String template = "#cache('key', 1)$value#end";
+        assertEquals("value1", eval(template));
+
+        Thread.sleep(1100);
+        context_.put("value", "value2");
+        assertEquals("value2", eval(template));
+    }
+
+    @Test
+    public void testCache_removed() throws Exception {
+        context_.put("value", "value1");
+        String template = "#cache('key', 0)$value#end";
+        assertEquals("value1", eval(template));
+
+        FragmentCache cache = (FragmentCache)engine_.getApplicationAttribute(FragmentCache.class.getName());
+        assertEquals(true, cache.remove("key"));
+        context_.put("value", "value2");
+        assertEquals("value2", eval(template));
+    }
+
+    @Test
+    public void testCache_evicted() throws Exception {
+        engine_.setProperty(DirectiveConstants.CACHE_MAX_SIZE, 10);
+        context_.put("value", "12345678");
+        assertEquals("12345678", eval("#cache('key1', 0)$value#end"));
+        assertEquals("12345678", eval("#cache('key2', 0)$value#end"));
+
+        context_.put("value", "changed");
+        assertEquals("12345678", eval("#cache('key2', 0)$value#end"));
+        assertEquals("changed", eval("#cache('key1', 0)$value#end"));
+    }
+
+    @Test
+    public void testCache_insideApply() throws Exception {
+        String template = "#apply('/examples/base.vm')"
+                + "#cache('key', 60)#block('block1')overridden#end#end"
+                + "#end";
+        assertEquals("overridden", eval(template));
+        assertEquals("overridden", eval(template));
+    }
+
+    @Test
+    public void testCache_insideLayout() throws Exception {
+        writeTemplate("cache/layout.vm", "#cache('layout', 60)[#block('title')default#end]#end");
+        assertEquals("[A]", evalPage("#block('title')A#end"));
+        assertEquals("[B]", evalPage("#block('title')B#end"));
+        assertEquals("[default]", evalPage(""));
+        assertEquals("[default]", evalPage("#block('undeclared')C#end"));
+        assertEquals("[A]", evalPage("#block('title')A#end"));
+    }
+
+    private String evalPage(final String blocks) throws Exception {
+        context_ = new VelocityContext();
+        return eval("#apply('/cache/layout.vm')" + blocks + "#end");
+    }
+
+    @Test(timeout=5000)
+    public void testCache_reentrant() throws Exception {
+        assertEquals("ab", eval("#cache('key', 60)a#cache('key', 60)b#end#end"));
+        assertEquals("ab", eval("#cache('key', 60)a#cache('key', 60)b#end#end"));
+    }
+
+    @Test(timeout=5000)
+    public void testCache_waitTimeout() throws Exception {
+        final FragmentCache cache = new FragmentCache(1024, 100);
+        assertNull(cache.acquire("key"));
+        final String[] result = new String[1];
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = cache.acquire("key");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        assertSame(FragmentCache.UNCACHED, result[0]);
+        cache.put("key", "content", 0);
+        assertEquals("content", cache.acquire("key"));
+    }
+
+    @Test
+    public void testCache_concurrently() throws Exception {
+        final Counter counter = new Counter();
+        final String template = "#cache('key', 60)$counter.next()#end";
+        eval("#nop()");
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        final VelocityContext context = new VelocityContext();
+                        context.put("counter", counter);
+                        final StringWriter writer = new StringWriter();
+                        engine_.evaluate(context, writer, "CacheTest", template);
+                        assertEquals("1", writer.toString());
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors.add(e);
+                        }
+                    }
+                }
+            });
+        }
+        for (final Thread thread: threads) {
+            thread.start();
+        }
+        for (final Thread thread: threads) {
+            thread.join();
+        }
+        assertEquals(new ArrayList<Throwable>(), errors);
+        assertEquals(1, counter.count_.get());
+    }
+
+    public static class Counter {
+        final AtomicInteger count_ = new AtomicInteger();
+
+        public int next() throws InterruptedException {
+            Thread.sleep(50);
+            return count_.incrementAndGet();
+        }
+    }
+
+
+    @Test(expected=ParseErrorException.class)
+    public void testCache_withNoArgument() throws Exception {
+        eval("#cache()#nop()#end");
+    }
+
+    @Test(expected=ParseErrorException.class)
+    public void testCache_withLessArgument() throws Exception {
+        eval("#cache('key')#nop()#end");
+    }
+
+}
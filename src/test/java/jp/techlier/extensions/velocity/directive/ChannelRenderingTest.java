@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.runtime.RuntimeConstants;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+public class ChannelRenderingTest extends DirectiveTestBase {
+
+    @Rule
+    public TemporaryFolder folder_ = new TemporaryFolder();
+
+
+    /**
+     * 書き込みの回数を数えるチャネル。
+     */
+    private static final class RecordingChannel implements WritableByteChannel {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int writes;
+
+        @Override
+        public int write(final ByteBuffer src) {
+            final int n = src.remaining();
+            while (src.hasRemaining()) {
+                out.write(src.get());
+            }
+            writes++;
+            return n;
+        }
+
+        @Override public boolean isOpen() { return true; }
+        @Override public void close() { /* nothing */ }
+    }
+
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        engine_.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH, folder_.getRoot().getPath());
+        final StringBuilder part = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            part.append("部品 $i: 0123456789abcdef\n");
+        }
+        writeTemplate("part.vm", part.toString());
+        writeTemplate("page.vm", "#apply('base.vm')#block('body')#foreach($i in [1..100])#import('part.vm')#end#end#end");
+        writeTemplate("base.vm", "<html>#block('body')#end</html>\n");
+        writeTemplate("loop.vm", "#foreach($i in [1..100])#import('part.vm')#end");
+    }
+
+    private String expected(final String templateName) throws Exception {
+        context_ = new VelocityContext();
+        return parse(templateName);
+    }
+
+
+    @Test
+    public void testMergeToChannel() throws Exception {
+        final Template template = engine_.getTemplate("/part.vm", "UTF-8");
+        final RecordingChannel channel = new RecordingChannel();
+        DirectiveUtils.mergeTemplate(template, "UTF-8", new VelocityContext(), channel);
+        assertEquals(expected("/part.vm"), channel.out.toString("UTF-8"));
+        assertEquals(1, channel.writes);
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        // #importの区切りごとに、溜まった内容が書き出される
+        final Template template = engine_.getTemplate("/loop.vm", "UTF-8");
+        final RecordingChannel channel = new RecordingChannel();
+        DirectiveUtils.mergeTemplate(template, "UTF-8", new VelocityContext(), channel);
+        assertEquals(expected("/loop.vm"), channel.out.toString("UTF-8"));
+        assertTrue(String.valueOf(channel.writes), channel.writes > 1);
+    }
+
+    @Test
+    public void testMergeToFile() throws Exception {
+        final File file = writeTemplate("out.html", "previous content which is longer than the output ..........................");
+        DirectiveUtils.mergeTemplate(engine_.getTemplate("/page.vm", "UTF-8"), "UTF-8", new VelocityContext(), file);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final InputStream in = new FileInputStream(file); try {
+            final byte[] buf = new byte[1024];
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                out.write(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        assertEquals(expected("/page.vm"), out.toString("UTF-8"));
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.runtime.RuntimeConstants;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+/**
+ * 一つのパース結果を、引数の異なる複数のスレッドから同時に描画する。
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+public class ConcurrentRenderingTest extends DirectiveTestBase {
+
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 200;
+    private static final int PARTS = 4;
+
+    @Rule
+    public TemporaryFolder folder_ = new TemporaryFolder();
+
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        engine_.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH, folder_.getRoot().getPath());
+        engine_.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_CACHE, "true");
+        writeTemplate("base.vm", "[#block('body')#end]");
+        for (int i = 0; i < PARTS; i++) {
+            writeTemplate("part" + i + ".vm", "part" + i);
+        }
+        writeTemplate("page.vm", "#defvar($x, $id)$x:"
+                       + "#import($part):"
+                       + "#displace($part)none#end:"
+                       + "#cache(\"id-$id\", 60)$id#end:"
+                       + "#set($removed = $id)#unset($removed, $deep)$!removed:"
+                       + "#apply('base.vm')#block($blockName)$id#end#end");
+    }
+
+    private static String expected(final int id) {
+        final String part = "part" + (id % PARTS);
+        return id + ":" + part + ":" + part + ":" + id + "::[" + id + "]";
+    }
+
+
+    @Test
+    public void testSharedTemplate() throws Exception {
+        final Template template = engine_.getTemplate("/page.vm", "UTF-8");
+        assertSame(template, engine_.getTemplate("/page.vm", "UTF-8"));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int t = 0; t < THREADS; t++) {
+                final int thread = t;
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        for (int i = 0; i < ITERATIONS; i++) {
+                            final int id = thread * ITERATIONS + i;
+                            final VelocityContext context = new VelocityContext();
+                            context.put("id", id);
+                            context.put("part", "/part" + (id % PARTS) + ".vm");
+                            context.put("deep", id % 2 == 0);
+                            context.put("blockName", "body");
+                            final StringWriter writer = new StringWriter();
+                            engine_.getTemplate("/page.vm", "UTF-8").merge(context, writer);
+                            assertEquals(expected(id), writer.toString());
+                        }
+                        return ITERATIONS;
+                    }
+                }));
+            }
+            start.countDown();
+            int rendered = 0;
+            for (final Future<Integer> future: futures) {
+                rendered += future.get();
+            }
+            assertEquals(THREADS * ITERATIONS, rendered);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -3,8 +3,10 @@
  */
 package jp.techlier.extensions.velocity.directive;
 
+import java.util.ArrayList;
+
 import org.junit.*;
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 
 /**
@@ -39,4 +41,49 @@ public class DefconstTest extends DirectiveTestBase {
         assertEquals("other context", eval("$CONSTANT"));
     }
 
+    @Test
+    public void testDefconst_valueIsNotWrapped() throws Exception {
+        context_.put("list", new ArrayList<Object>());
+        assertEquals("0", eval("#defconst($CONSTANT, $list)#set($CONSTANT = 'changed')$CONSTANT.size()"));
+        assertEquals(context_.get("list"), context_.get("CONSTANT"));
+    }
+
+    @Test
+    public void testDefconst_redefine() throws Exception {
+        String template = "#defconst($var, 'first')"
+                + "#defconst($var, 'second')"
+                + "$var";
+        assertEquals("first", eval(template));
+    }
+
+    @Test
+    public void testDefconst_withConstantContext() throws Exception {
+        context_ = new ConstantContext();
+        String template = "#defconst($var, 'immutable')"
+                + "$var"
+                + "#set($var = 'cannot change')"
+                + "#unset($var)"
+                + " is $var";
+        assertEquals("immutable is immutable", eval(template));
+        assertEquals("immutable", context_.get("var"));
+        assertTrue(((ConstantContext)context_).isConstant("var"));
+
+        context_.put("var", "other context");
+        assertEquals("immutable", eval("#set($var = 'other context')$var"));
+        assertEquals("immutable", context_.get("var"));
+
+        context_.put("other", "variable");
+        assertEquals("changed", eval("#set($other = 'changed')$other"));
+    }
+
+    @Test
+    public void testDefconst_clonedConstantContext() throws Exception {
+        ConstantContext context = new ConstantContext();
+        context.defineConstant("var", "immutable");
+        ConstantContext clone = (ConstantContext)context.clone();
+        clone.defineConstant("other", "immutable");
+        assertTrue(clone.isConstant("var"));
+        assertFalse(context.isConstant("other"));
+    }
+
 }
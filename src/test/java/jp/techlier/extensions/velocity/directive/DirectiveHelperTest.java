@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeServices;
+import org.apache.velocity.runtime.log.LogChute;
+
+import jp.techlier.extensions.velocity.util.ReflectUtils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+public class DirectiveHelperTest extends DirectiveTestBase {
+
+    static class RecordingLogChute implements LogChute {
+        final int level_;
+        final List<String> messages_ = new ArrayList<String>();
+
+        RecordingLogChute(final int level) {
+            level_ = level;
+        }
+
+        @Override public void init(RuntimeServices rs) { /* nothing */ }
+
+        @Override public synchronized void log(int level, String message) {
+            if (isLevelEnabled(level)) {
+                messages_.add(level + ":" + message);
+            }
+        }
+
+        @Override public void log(int level, String message, Throwable t) {
+            log(level, message);
+        }
+
+        @Override public boolean isLevelEnabled(int level) {
+            return level >= level_;
+        }
+
+        synchronized List<String> getMessages(final String prefix) {
+            final List<String> messages = new ArrayList<String>();
+            for (final String message: messages_) {
+                if (message.startsWith(prefix)) {
+                    messages.add(message);
+                }
+            }
+            return messages;
+        }
+    }
+
+    private static final String TEMPLATE_NAME = DirectiveHelperTest.class.getName().replace('.', '/');
+
+    @Test
+    public void testWarn() throws Exception {
+        RecordingLogChute log = new RecordingLogChute(LogChute.WARN_ID);
+        engine_.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, log);
+        assertEquals("", eval("#prepend('block')#end"));
+        assertEquals("[" + LogChute.WARN_ID + ":#prepend() found outside of #apply, called at "
+                         + TEMPLATE_NAME + "[line 1, column 1]]",
+                     log.getMessages(LogChute.WARN_ID + ":#").toString());
+    }
+
+    @Test
+    public void testDebug_disabled() throws Exception {
+        RecordingLogChute log = new RecordingLogChute(LogChute.INFO_ID);
+        engine_.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, log);
+        assertEquals("block", eval("#block('block')block#end"));
+        assertEquals(0, log.getMessages(LogChute.DEBUG_ID + ":#").size());
+    }
+
+    @Test
+    public void testDebug_enabled() throws Exception {
+        RecordingLogChute log = new RecordingLogChute(LogChute.DEBUG_ID);
+        engine_.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, log);
+        assertEquals("block", eval("#block('block')block#end"));
+        assertEquals("[" + LogChute.DEBUG_ID + ":#block() block, called at "
+                         + TEMPLATE_NAME + "[line 1, column 1]]",
+                     log.getMessages(LogChute.DEBUG_ID + ":#").toString());
+    }
+
+    @Test
+    public void testAsyncLog() throws Exception {
+        RecordingLogChute log = new RecordingLogChute(LogChute.WARN_ID);
+        engine_.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, log);
+        engine_.setProperty(DirectiveConstants.LOG_ASYNC, true);
+        assertEquals("", eval("#prepend('block')#end\n#append('block')#end"));
+
+        AsyncLog asyncLog = (AsyncLog)engine_.getApplicationAttribute(AsyncLog.class.getName());
+        asyncLog.flush();
+        assertEquals("[" + LogChute.WARN_ID + ":#prepend() found outside of #apply, called at "
+                         + TEMPLATE_NAME + "[line 1, column 1], "
+                         + LogChute.WARN_ID + ":#append() found outside of #apply, called at "
+                         + TEMPLATE_NAME + "[line 2, column 1]]",
+                     log.getMessages(LogChute.WARN_ID + ":#").toString());
+    }
+
+    @Test
+    public void testAsyncLog_overflow() throws Exception {
+        RecordingLogChute log = new RecordingLogChute(LogChute.WARN_ID);
+        engine_.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, log);
+        engine_.setProperty(DirectiveConstants.LOG_ASYNC, true);
+        engine_.setProperty(DirectiveConstants.LOG_ASYNC_BUFFER_SIZE, 2);
+        StringBuilder template = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            template.append("#prepend('block')#end\n");
+        }
+        assertEquals("", eval(template.toString()).trim());
+
+        AsyncLog asyncLog = (AsyncLog)engine_.getApplicationAttribute(AsyncLog.class.getName());
+        asyncLog.flush();
+        int written = log.getMessages(LogChute.WARN_ID + ":#prepend()").size();
+        int dropped = 0;
+        for (String message: log.getMessages(LogChute.WARN_ID + ":AsyncLog: ")) {
+            dropped += Integer.parseInt(message.replaceAll("\\D+", " ").trim().split(" ")[1]);
+        }
+        assertEquals(100, written + dropped);
+    }
+
+    @Test
+    public void testAsyncLog_shutdown() throws Exception {
+        RecordingLogChute log = new RecordingLogChute(LogChute.WARN_ID);
+        engine_.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, log);
+        engine_.setProperty(DirectiveConstants.LOG_ASYNC, true);
+        assertEquals("", eval("#prepend('block')#end"));
+
+        DirectiveUtils.shutdown(engine_);
+        assertEquals(1, log.getMessages(LogChute.WARN_ID + ":#prepend()").size());
+        // 終了後は描画スレッドで出力する
+        assertEquals("", eval("#append('block')#end"));
+        assertEquals(1, log.getMessages(LogChute.WARN_ID + ":#append()").size());
+    }
+
+    @Test(timeout=5000)
+    public void testAsyncLog_interrupted() throws Exception {
+        RecordingLogChute log = new RecordingLogChute(LogChute.WARN_ID);
+        engine_.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM, log);
+        engine_.setProperty(DirectiveConstants.LOG_ASYNC, true);
+        assertEquals("", eval("#prepend('block')#end"));
+
+        AsyncLog asyncLog = (AsyncLog)engine_.getApplicationAttribute(AsyncLog.class.getName());
+        asyncLog.flush();
+        Thread thread = (Thread)ReflectUtils.get(asyncLog, "thread_");
+        thread.interrupt();
+        thread.join();
+        // 出力スレッドが終了した後は描画スレッドで出力する
+        assertEquals("", eval("#append('block')#end"));
+        assertEquals(1, log.getMessages(LogChute.WARN_ID + ":#append()").size());
+        asyncLog.flush();
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+public class DirectiveMetricsTest extends DirectiveTestBase {
+
+    private DirectiveMetrics getMetrics() {
+        return (DirectiveMetrics)engine_.getApplicationAttribute(DirectiveMetrics.class.getName());
+    }
+
+    @After
+    public void tearDown() {
+        final DirectiveMetrics metrics = getMetrics();
+        if (metrics != null) {
+            metrics.unregister();
+        }
+    }
+
+    @Test
+    public void testMetrics_disabled() throws Exception {
+        assertEquals("value", eval("#defvar($var, 'value')$var#nop()"));
+        assertNull(getMetrics());
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        engine_.setProperty(DirectiveConstants.METRICS_ENABLED, true);
+        String template = "#defvar($var, 'value')$var\n#nop()#nil()#set($x = 1)#end";
+        assertEquals("value\n", eval(template));
+        assertEquals("value\n", eval(template));
+
+        DirectiveMetrics metrics = getMetrics();
+        String templateName = getClass().getName().replace('.', '/');
+        assertArrayEquals(new String[] {
+                "#defvar() at " + templateName + "[line 1, column 1]",
+                "#nil() at " + templateName + "[line 2, column 7]",
+                "#nop() at " + templateName + "[line 2, column 1]",
+            }, metrics.getSiteNames());
+        assertEquals(6, metrics.getRenderCount());
+        assertEquals(2, metrics.getCount("#nop() at " + templateName + "[line 2, column 1]"));
+
+        long total = 0;
+        for (long count: metrics.getHistogram("#nil() at " + templateName + "[line 2, column 7]")) {
+            total += count;
+        }
+        assertEquals(2, total);
+        assertEquals(3, metrics.getSummary().length);
+
+        metrics.reset();
+        assertEquals(0, metrics.getRenderCount());
+    }
+
+    @Test
+    public void testMetrics_mbean() throws Exception {
+        engine_.setProperty(DirectiveConstants.METRICS_ENABLED, true);
+        eval("#nop()");
+
+        ObjectName name = getMetrics().getObjectName();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(name));
+        assertEquals(1L, server.getAttribute(name, "RenderCount"));
+
+        getMetrics().unregister();
+        assertTrue(!server.isRegistered(name));
+    }
+
+    @Test
+    public void testMetrics_shutdown() throws Exception {
+        engine_.setProperty(DirectiveConstants.METRICS_ENABLED, true);
+        eval("#nop()");
+
+        ObjectName name = getMetrics().getObjectName();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue(server.isRegistered(name));
+
+        DirectiveUtils.shutdown(engine_);
+        assertTrue(!server.isRegistered(name));
+        assertNull(getMetrics().getObjectName());
+    }
+
+}
@@ -4,7 +4,9 @@
 package jp.techlier.extensions.velocity.directive;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -70,6 +72,22 @@ public abstract class DirectiveTestBase {
     }
 
 
+    /**
+     * Write a template in UTF-8 under <code>file.resource.loader.path</code> of the engine.
+     * @return the written file
+     */
+    protected File writeTemplate(final String name, final String content) throws IOException {
+        final File file = new File(String.valueOf(engine_.getProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH)), name);
+        file.getParentFile().mkdirs();
+        final OutputStream out = new FileOutputStream(file); try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+
     protected void testExample(final String templateName) throws Exception {
         testExample(templateName, templateName.replace(".vm", ".txt"));
     }
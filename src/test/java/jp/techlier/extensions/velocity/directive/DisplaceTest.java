@@ -3,6 +3,10 @@
  */
 package jp.techlier.extensions.velocity.directive;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+
 import org.apache.velocity.exception.ParseErrorException;
 
 import org.junit.*;
@@ -31,6 +35,58 @@ public class DisplaceTest extends DirectiveTestBase {
         testDisplace("$NULL", null);
     }
 
+    @Test
+    public void testDisplace_cached() throws Exception {
+        engine_.setProperty(DirectiveConstants.DISPLACE_CACHE_TTL, -1);
+        File file = new File(TEMPLATES_DIR + "displace/cached.vm");
+        file.delete();
+        testDisplace("'/displace/cached.vm'", null);
+
+        writeFile(file, "Here is 'cached.vm'.");
+        testDisplace("'/displace/cached.vm'", null);
+
+        DirectiveUtils.invalidateTemplateCache(engine_);
+        testDisplace("'/displace/cached.vm'", "Here is 'cached.vm'.");
+
+        file.delete();
+        // existence is forgotten, and the block is rendered instead
+        testDisplace("'/displace/cached.vm'", null);
+        testDisplace("'/displace/cached.vm'", null);
+    }
+
+    @Test
+    public void testDisplace_cacheExpired() throws Exception {
+        engine_.setProperty(DirectiveConstants.DISPLACE_CACHE_TTL, 1);
+        File file = new File(TEMPLATES_DIR + "displace/expired.vm");
+        file.delete();
+        testDisplace("'/displace/expired.vm'", null);
+
+        writeFile(file, "Here is 'expired.vm'.");
+        testDisplace("'/displace/expired.vm'", null);
+
+        Thread.sleep(1100);
+        testDisplace("'/displace/expired.vm'", "Here is 'expired.vm'.");
+    }
+
+    @Test
+    public void testDisplace_notCached() throws Exception {
+        File file = new File(TEMPLATES_DIR + "displace/uncached.vm");
+        file.delete();
+        testDisplace("'/displace/uncached.vm'", null);
+
+        writeFile(file, "Here is 'uncached.vm'.");
+        testDisplace("'/displace/uncached.vm'", "Here is 'uncached.vm'.");
+    }
+
+    private void writeFile(File file, String content) throws Exception {
+        file.getParentFile().mkdirs();
+        Writer writer = new FileWriter(file); try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
     @Test(expected=ParseErrorException.class)
     public void testDisplace_withNoArgument() throws Exception {
         testDisplace("", null);
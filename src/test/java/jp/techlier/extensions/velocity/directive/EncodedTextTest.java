@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.runtime.RuntimeConstants;
+
+import jp.techlier.extensions.velocity.util.ByteBufferPool;
+import jp.techlier.extensions.velocity.util.ByteBufferWriter;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+
+/**
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+public class EncodedTextTest extends DirectiveTestBase {
+
+    private static final String EXPECTED = "<html>ヘッダ\nページのタイトル本文: 値 追記<footer>フッタ 😀 値</footer>\n</html>\n";
+
+    @Rule
+    public TemporaryFolder folder_ = new TemporaryFolder();
+
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        engine_.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH, folder_.getRoot().getPath());
+        engine_.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_CACHE, "true");
+        writeTemplate("base.vm", "<html>ヘッダ\n#block('title')既定のタイトル#end\n"
+                         + "#block('body')本文: $value#end\n#import('footer.vm')</html>\n");
+        writeTemplate("footer.vm", "<footer>フッタ 😀 $value</footer>\n");
+        writeTemplate("page.vm", "#apply('base.vm')#block('title')ページのタイトル#end#append('body') 追記#end#end");
+        writeTemplate("other.vm", "#import('footer.vm')");
+    }
+
+    private VelocityContext newContext() {
+        final VelocityContext context = new VelocityContext();
+        context.put("value", "値");
+        return context;
+    }
+
+    private String render(final String templateName) throws Exception {
+        context_ = newContext();
+        return parse(templateName);
+    }
+
+    private String render(final String templateName, final String charsetName) throws Exception {
+        final Template template = engine_.getTemplate(templateName, "UTF-8");
+        final ByteBufferWriter writer = new ByteBufferWriter(ByteBufferPool.getDefault(), charsetName); try {
+            template.merge(newContext(), writer);
+            return writer.toString();
+        } finally {
+            writer.release();
+        }
+    }
+
+
+    @Test
+    public void testRender() throws Exception {
+        assertEquals(EXPECTED, render("/page.vm"));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(EXPECTED, render("/page.vm", "UTF-8"));
+        }
+        // 出力エンコーディングと異なる文字コードでは、通常どおり描画する
+        assertEquals(EXPECTED.replace("😀", "?"), render("/page.vm", "Shift_JIS"));
+    }
+
+    @Test
+    public void testRender_lateRendering() throws Exception {
+        engine_.setProperty(DirectiveConstants.BLOCK_LATE_RENDERING, "true");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(EXPECTED, render("/page.vm", "UTF-8"));
+        }
+    }
+
+    @Test
+    public void testShared() throws Exception {
+        assertEquals(EXPECTED, render("/page.vm", "UTF-8"));
+        assertEquals(render("/other.vm"), render("/other.vm", "UTF-8"));
+
+        final TemplateResolver resolver =
+                (TemplateResolver)engine_.getApplicationAttribute(TemplateResolver.class.getName());
+        final Template footer = engine_.getTemplate("/footer.vm", "UTF-8");
+        final EncodedText encodedText = resolver.getEncodedText(footer);
+        assertSame(footer.getData(), encodedText.getNode());
+        assertSame(encodedText, resolver.getEncodedText(footer));
+
+        DirectiveUtils.invalidateTemplate(engine_, "/footer.vm");
+        assertNotSame(encodedText, resolver.getEncodedText(footer));
+
+        // #importを経ずに取得したテンプレートも共有する
+        final Template other = engine_.getTemplate("/other.vm", "UTF-8");
+        assertSame(resolver.getEncodedText(other), resolver.getEncodedText(other));
+    }
+
+}
@@ -3,8 +3,13 @@
  */
 package jp.techlier.extensions.velocity.directive;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+
 import org.apache.velocity.exception.ParseErrorException;
 import org.apache.velocity.exception.ResourceNotFoundException;
+import org.apache.velocity.runtime.RuntimeConstants;
 
 import org.junit.Test;
 
@@ -25,6 +30,52 @@ public class ImportTest extends DirectiveTestBase {
         assertEquals(expected, eval(template));
     }
 
+    @Test
+    public void testImport_withReferenceArgument() throws Exception {
+        String template = "#import($name)";
+        context_.put("name", "/test.vm");
+        assertEquals("Here is 'test.vm'.\r\n", eval(template));
+        context_.put("name", "/import.vm");
+        assertEquals("Before importing 'test.vm'.\r\n"
+                   + "Here is 'test.vm'.\r\n"
+                   + "After importing 'test.vm'.\r\n", eval(template));
+    }
+
+    @Test
+    public void testImport_reloaded() throws Exception {
+        engine_.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_CACHE, "true");
+        engine_.setProperty("file.resource.loader.modificationCheckInterval", "1");
+        writeTemplate("reload/import.vm", "#import('imported.vm')", 0);
+        writeTemplate("reload/imported.vm", "version 1", 0);
+        assertEquals("version 1", parse("reload/import.vm"));
+        assertEquals("version 1", parse("reload/import.vm"));
+
+        writeTemplate("reload/imported.vm", "version 2", 10000);
+        Thread.sleep(1100);
+        assertEquals("version 2", parse("reload/import.vm"));
+    }
+
+    @Test
+    public void testImport_withoutCache() throws Exception {
+        writeTemplate("reload/import.vm", "#import('imported.vm')", 0);
+        writeTemplate("reload/imported.vm", "version 1", 0);
+        assertEquals("version 1", parse("reload/import.vm"));
+
+        writeTemplate("reload/imported.vm", "version 2", 10000);
+        assertEquals("version 2", parse("reload/import.vm"));
+    }
+
+    private void writeTemplate(final String name, final String content, final long offset) throws Exception {
+        File file = new File(TEMPLATES_DIR + name);
+        file.getParentFile().mkdirs();
+        Writer writer = new FileWriter(file); try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+        file.setLastModified(System.currentTimeMillis() + offset);
+    }
+
     @Test(expected=ResourceNotFoundException.class)
     public void testImport_notFound() throws Exception {
         assertEquals("", eval("#import('import.vm')"));
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.velocity.Template;
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.log.NullLogChute;
+
+
+/**
+ * 共有したテンプレートエンジンで、複数のスレッドから同時にテンプレートを描画し、
+ * スループット、レイテンシのパーセンタイル、描画あたりの割り当てバイト数を計測する。
+ * <p>
+ * examplesとtest1-*のテンプレートに加え、#applyをdepth段重ねた継承ツリーを生成して描画する。
+ * 各テンプレートの出力は、単一スレッドでの出力と一致することを確認する。
+ * 割り当てバイト数は、HotSpotのcom.sun.management.ThreadMXBeanが使える場合のみ計測する。
+ * </p>
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes:&lt;dependencies&gt; \
+ *     jp.techlier.extensions.velocity.directive.LoadHarness [threads] [iterations] [depth] [blocks]
+ * </pre>
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+public class LoadHarness extends DirectiveTestBase {
+
+    static final String[] TEMPLATES = {
+        "examples/append-example.vm",
+        "examples/apply-example.vm",
+        "examples/block-example-extend.vm",
+        "examples/defconst-example.vm",
+        "examples/defvar-example.vm",
+        "examples/nil-example.vm",
+        "examples/prepend-example.vm",
+        "test1-extend1.vm",
+        "test1-extend2.vm",
+    };
+
+    private static final String LOAD_DIR = "load/";
+
+
+    /**
+     * 計測結果。
+     */
+    static final class Report {
+        final int threads;
+        final long renders;
+        final long errors;
+        final long elapsedNanos;
+        final long[] latencies;
+        /** 描画あたりの割り当てバイト数。計測できない場合は-1。 */
+        final long allocatedBytesPerRender;
+
+        Report(final int threads, final long renders, final long errors, final long elapsedNanos,
+               final long[] latencies, final long allocatedBytesPerRender) {
+            this.threads = threads;
+            this.renders = renders;
+            this.errors = errors;
+            this.elapsedNanos = elapsedNanos;
+            this.latencies = latencies;
+            this.allocatedBytesPerRender = allocatedBytesPerRender;
+            Arrays.sort(this.latencies);
+        }
+
+        double throughput() {
+            return renders * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * @param percentile 0 ~ 100
+         * @return レイテンシ(ナノ秒)
+         */
+        long percentile(final double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            final int index = (int)Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))];
+        }
+
+        @Override
+        public String toString() {
+            return String.format("threads=%d renders=%d errors=%d throughput=%.1f/s"
+                                 + " p50=%.1fus p99=%.1fus p999=%.1fus allocated=%s",
+                                 threads, renders, errors, throughput(),
+                                 percentile(50) / 1e3, percentile(99) / 1e3, percentile(99.9) / 1e3,
+                                 allocatedBytesPerRender >= 0 ? allocatedBytesPerRender + "B/render" : "n/a");
+        }
+    }
+
+
+    private final List<Template> templates_ = new ArrayList<Template>();
+    private final List<String> expected_ = new ArrayList<String>();
+
+    /**
+     * エンジンを初期化し、継承ツリーを生成して、各テンプレートの期待する出力を得る。
+     * @param depth 継承ツリーの段数
+     * @param blocks 継承ツリーの各段のblockの数
+     */
+    void prepare(final int depth, final int blocks) throws Exception {
+        setUp();
+        engine_.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, NullLogChute.class.getName());
+        engine_.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_CACHE, "true");
+        engine_.setProperty("file.resource.loader.modificationCheckInterval", "0");
+        engine_.init();
+
+        final List<String> templateNames = new ArrayList<String>(Arrays.asList(TEMPLATES));
+        if (depth > 0) {
+            writeTree(depth, blocks);
+            templateNames.add(LOAD_DIR + "level" + depth + ".vm");
+        }
+        for (final String templateName: templateNames) {
+            final Template template = engine_.getTemplate(templateName, "UTF-8");
+            templates_.add(template);
+            expected_.add(render(template));
+        }
+    }
+
+    private void writeTree(final int depth, final int blocks) throws IOException {
+        final StringBuilder base = new StringBuilder();
+        for (int b = 0; b < blocks; b++) {
+            base.append("#block('block").append(b).append("')block").append(b).append("@level0: $value\n#end\n");
+        }
+        write(LOAD_DIR + "level0.vm", base);
+        final String[] directives = { "block", "prepend", "append" };
+        for (int level = 1; level <= depth; level++) {
+            final StringBuilder template = new StringBuilder();
+            template.append("#apply('level").append(level - 1).append(".vm')\n");
+            for (int b = 0; b < blocks; b++) {
+                final String directive = directives[(b + level) % directives.length];
+                template.append('#').append(directive).append("('block").append(b).append("')");
+                template.append("block").append(b).append("@level").append(level).append("#end\n");
+            }
+            template.append("#end\n");
+            write(LOAD_DIR + "level" + level + ".vm", template);
+        }
+    }
+
+    private static void write(final String name, final CharSequence content) throws IOException {
+        final File file = new File(TEMPLATES_DIR + name);
+        file.getParentFile().mkdirs();
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8"); try {
+            writer.append(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String render(final Template template) throws Exception {
+        final VelocityContext context = new VelocityContext();
+        context.put("value", "value");
+        final StringWriter writer = new StringWriter(1024);
+        template.merge(context, writer);
+        return writer.toString();
+    }
+
+
+    /**
+     * @param threads スレッド数
+     * @param iterations スレッドごとの描画回数
+     * @return 計測結果
+     */
+    Report run(final int threads, final int iterations) throws Exception {
+        final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        final com.sun.management.ThreadMXBean allocationBean =
+                threadBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean)threadBean).isThreadAllocatedMemorySupported()
+                ? (com.sun.management.ThreadMXBean)threadBean : null;
+        if (allocationBean != null) {
+            allocationBean.setThreadAllocatedMemoryEnabled(true);
+        }
+
+        final long[] latencies = new long[threads * iterations];
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong allocated = new AtomicLong();
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final int offset = t * iterations;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ready.countDown();
+                        start.await();
+                        final long allocatedBefore = allocationBean != null
+                                ? allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+                        for (int i = 0; i < iterations; i++) {
+                            final int index = (offset + i) % templates_.size();
+                            final long begin = System.nanoTime();
+                            String output;
+                            try {
+                                output = render(templates_.get(index));
+                            } catch (Exception e) {
+                                output = null;
+                            }
+                            latencies[offset + i] = System.nanoTime() - begin;
+                            if (output == null || !output.equals(expected_.get(index))) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                        if (allocationBean != null) {
+                            allocated.addAndGet(allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId())
+                                                - allocatedBefore);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "load-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        ready.await();
+        final long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        final long elapsed = System.nanoTime() - begin;
+
+        final long renders = (long)threads * iterations;
+        return new Report(threads, renders, errors.get(), elapsed, latencies,
+                          allocationBean != null && renders > 0 ? allocated.get() / renders : -1);
+    }
+
+
+    public static void main(final String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        final int depth = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        final int blocks = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+        final LoadHarness harness = new LoadHarness();
+        harness.prepare(depth, blocks);
+        System.out.println("warmup:  " + harness.run(threads, Math.max(iterations / 10, 1)));
+        System.out.println("measure: " + harness.run(threads, iterations));
+    }
+
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * {@link LoadHarness}を小さな規模で実行する。
+ *
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+public class LoadHarnessTest {
+
+    @Test
+    public void testRun() throws Exception {
+        final LoadHarness harness = new LoadHarness();
+        harness.prepare(4, 16);
+        final LoadHarness.Report report = harness.run(4, 50);
+        assertEquals(200, report.renders);
+        assertEquals(0, report.errors);
+        assertTrue(report.percentile(50) <= report.percentile(99));
+        assertTrue(report.percentile(99) <= report.percentile(99.9));
+        assertTrue(report.toString(), report.toString().contains("p999="));
+    }
+
+}
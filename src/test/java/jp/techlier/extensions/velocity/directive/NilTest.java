@@ -13,6 +13,22 @@ import static org.junit.Assert.assertEquals;
  */
 public class NilTest extends DirectiveTestBase {
 
+    public static class Counter {
+        private int count_;
+
+        public int getCount() {
+            return ++count_;
+        }
+
+        public int next() {
+            return ++count_;
+        }
+
+        public int peek() {
+            return count_;
+        }
+    }
+
     @Test
     public void testNil() throws Exception {
         String template = "#set($var = 'initial')"
@@ -24,11 +40,53 @@ public class NilTest extends DirectiveTestBase {
         assertEquals("value", eval(template));
     }
 
+    @Test
+    public void testNil_sideEffectsOnly() throws Exception {
+        final Counter counter = new Counter();
+        context_.put("counter", counter);
+        String template = "#nil()"
+                + "text $counter.count ${counter.count} $!counter.count"
+                + "$counter.next() #* comment *#"
+                + "#defvar($var, $counter.peek())"
+                + "#if(true)$counter.next()#end"
+                + "#end"
+                + "$var $counter.peek()";
+        assertEquals("1 2", eval(template));
+    }
+
+    @Test
+    public void testNil_unset() throws Exception {
+        String template = "#set($var = 'value')"
+                + "#nil()#unset($var)#end"
+                + "$var";
+        assertEquals("$var", eval(template));
+    }
+
     @Test
     public void testNil_withArguments() throws Exception {
         String template = "#nil('arguments', 'are', 'ignored', $NULL)"
-                + "#nop()#end";
-        assertEquals("", eval(template));
+                + "#nop()#set($var = 'value')#end$var";
+        assertEquals("value", eval(template));
+    }
+
+    @Test(timeout=5000)
+    public void testNilWriter_withoutLock() throws Exception {
+        final Nil.NilWriter writer = new Nil.NilWriter();
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                writer.write('c');
+                writer.write("text");
+                writer.write("text", 1, 2);
+                writer.append("text");
+                writer.append('c');
+            }
+        };
+        // Writer#lockはwriter自身
+        synchronized (writer) {
+            thread.start();
+            thread.join();
+        }
     }
 
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.exception.ParseErrorException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+public class ScopeTest extends DirectiveTestBase {
+
+    @Test
+    public void testScope() throws Exception {
+        String template = "#set($var = 'outer')"
+                + "#scope()"
+                + "#set($var = 'inner')#set($local = 'local')"
+                + "$var $local|"
+                + "#end"
+                + "$var $local";
+        assertEquals("inner local|outer $local", eval(template));
+        assertEquals("outer", context_.get("var"));
+        assertEquals(null, context_.get("local"));
+    }
+
+    @Test
+    public void testScope_readsOuter() throws Exception {
+        context_.put("user", "user");
+        assertEquals("user", eval("#scope()$user#end"));
+    }
+
+    @Test
+    public void testScope_unset() throws Exception {
+        String template = "#set($var = 'outer')"
+                + "#scope()#unset($var)$var|#end"
+                + "$var";
+        assertEquals("$var|outer", eval(template));
+    }
+
+    @Test
+    public void testScope_deepUnset() throws Exception {
+        String template = "#set($var = 'outer')"
+                + "#scope()#set($var = 'inner')#unset($var, true)$var|#end"
+                + "$var";
+        assertEquals("$var|outer", eval(template));
+    }
+
+    @Test
+    public void testScope_defvar() throws Exception {
+        String template = "#scope()#defvar($var, 'inner')$var|#end"
+                + "#defvar($var, 'outer')$var";
+        assertEquals("inner|outer", eval(template));
+    }
+
+    @Test
+    public void testScope_deepUnsetInsideMacro() throws Exception {
+        String template = "#macro(drop)#foreach($i in [1])#unset($var, true)#end#end"
+                + "#set($var = 'outer')"
+                + "#scope()#set($var = 'inner')#drop()$var|#end"
+                + "$var";
+        assertEquals("$var|outer", eval(template));
+    }
+
+    @Test
+    public void testScope_defconst() throws Exception {
+        String template = "#scope()#defconst($CONST, 'inner')#set($CONST = 'changed')#unset($CONST)$CONST|#end"
+                + "$CONST";
+        assertEquals("inner|$CONST", eval(template));
+    }
+
+    @Test
+    public void testScope_nested() throws Exception {
+        String template = "#scope()#set($a = 1)"
+                + "#scope()#set($a = 2)#set($b = 2)$a$b|#end"
+                + "$a$b|#end"
+                + "$a";
+        assertEquals("22|1$b|$a", eval(template));
+    }
+
+    @Test
+    public void testScope_foreachAndMacro() throws Exception {
+        String template = "#macro(show $v)[$v$local]#end"
+                + "#scope()#set($local = '!')"
+                + "#foreach($i in [1..3])#set($last = $i)#show($i)#end"
+                + "$last|#end"
+                + "$last$i";
+        assertEquals("[1!][2!][3!]3|$last$i", eval(template));
+    }
+
+    @Test
+    public void testScope_innerContext() throws Exception {
+        context_.put("var", "innerValue");
+        context_ = new VelocityContext(context_);
+        assertEquals("value|innerValue", eval("#scope()#set($var = 'value')$var|#end$var"));
+        assertEquals("innerValue", context_.get("var"));
+    }
+
+    @Test
+    public void testScope_blockInsideApply() throws Exception {
+        String template = "#apply('/examples/base.vm')"
+                + "#scope()#set($title = 'scoped')#block('block1')$title#end#end"
+                + "#end";
+        assertEquals(eval("#apply('/examples/base.vm')#block('block1')scoped#end#end"), eval(template));
+    }
+
+    @Test(expected=ParseErrorException.class)
+    public void testScope_withExcessArgument() throws Exception {
+        eval("#scope('excess')#end");
+    }
+
+}
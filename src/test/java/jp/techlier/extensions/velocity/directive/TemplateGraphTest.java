@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import org.apache.velocity.runtime.RuntimeConstants;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+/**
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+public class TemplateGraphTest extends DirectiveTestBase {
+
+    @Rule
+    public TemporaryFolder folder_ = new TemporaryFolder();
+
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        engine_.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH, folder_.getRoot().getPath());
+    }
+
+    private TemplateGraph graph() {
+        return (TemplateGraph)engine_.getApplicationAttribute(TemplateGraph.class.getName());
+    }
+
+
+    @Test
+    public void testDependents() throws Exception {
+        writeTemplate("a.vm", "#import('sub/b.vm')");
+        writeTemplate("sub/b.vm", "#import('../c.vm')");
+        writeTemplate("c.vm", "c");
+        writeTemplate("d.vm", "#apply('/c.vm')#end");
+        writeTemplate("e.vm", "#displace('/c.vm')none#end");
+        assertEquals("c", parse("/a.vm"));
+        assertEquals("c", parse("/d.vm"));
+        assertEquals("c", parse("/e.vm"));
+
+        assertEquals("[/a.vm, /c.vm, /d.vm, /e.vm, /sub/b.vm]",
+                     DirectiveUtils.getDependentTemplates(engine_, "/c.vm").toString());
+        assertEquals("[/a.vm, /c.vm, /d.vm, /e.vm, /sub/b.vm]",
+                     DirectiveUtils.getDependentTemplates(engine_, "/sub/../c.vm").toString());
+        assertEquals("[/a.vm, /sub/b.vm]", DirectiveUtils.getDependentTemplates(engine_, "/sub/b.vm").toString());
+        assertEquals("[/a.vm]", DirectiveUtils.getDependentTemplates(engine_, "/a.vm").toString());
+    }
+
+    @Test
+    public void testDependents_unknown() throws Exception {
+        assertEquals("[/a.vm]", DirectiveUtils.getDependentTemplates(engine_, "/a.vm").toString());
+    }
+
+    @Test
+    public void testCycle() throws Exception {
+        writeTemplate("x.vm", "#if($recurse)#import('y.vm')#end");
+        writeTemplate("y.vm", "#import('x.vm')");
+        writeTemplate("z.vm", "#import('x.vm')");
+        DirectiveUtils.preloadTemplates(engine_);
+        assertEquals("[/x.vm, /y.vm, /x.vm]", String.valueOf(graph().findCycle("/x.vm", "/y.vm")));
+        assertEquals("[/y.vm, /x.vm, /y.vm]", String.valueOf(graph().findCycle("/y.vm", "/x.vm")));
+        assertNull(graph().findCycle("/z.vm", "/x.vm"));
+    }
+
+    @Test
+    public void testInvalidateTemplate() throws Exception {
+        engine_.setProperty(DirectiveConstants.DISPLACE_CACHE_TTL, -1);
+        writeTemplate("page.vm", "#displace('override.vm')default#end");
+        assertEquals("default", parse("/page.vm"));
+
+        writeTemplate("override.vm", "override");
+        assertEquals("default", parse("/page.vm"));
+
+        assertEquals("[/override.vm, /page.vm]", DirectiveUtils.invalidateTemplate(engine_, "/override.vm").toString());
+        assertEquals("override", parse("/page.vm"));
+    }
+
+    @Test
+    public void testInvalidateTemplate_relativeName() throws Exception {
+        engine_.setProperty(DirectiveConstants.DISPLACE_CACHE_TTL, -1);
+        writeTemplate("sub/page.vm", "#displace('../override.vm')default#end");
+        assertEquals("default", parse("/sub/page.vm"));
+
+        writeTemplate("override.vm", "override");
+        assertEquals("[/override.vm, /sub/page.vm]",
+                     DirectiveUtils.invalidateTemplate(engine_, "/override.vm").toString());
+        assertEquals("override", parse("/sub/page.vm"));
+    }
+
+    @Test
+    public void testDependents_bounded() throws Exception {
+        writeTemplate("page.vm", "#foreach($i in [1..$max])#displace(\"/n${i}.vm\")#end#end");
+        context_.put("max", TemplateGraph.MAX_IMPORTS_PER_TEMPLATE + 1);
+        assertEquals("", parse("/page.vm"));
+
+        assertEquals("[/n1.vm]", DirectiveUtils.getDependentTemplates(engine_, "/n1.vm").toString());
+        assertEquals("[/n" + (TemplateGraph.MAX_IMPORTS_PER_TEMPLATE + 1) + ".vm, /page.vm]",
+                     DirectiveUtils.getDependentTemplates(engine_,
+                             "/n" + (TemplateGraph.MAX_IMPORTS_PER_TEMPLATE + 1) + ".vm").toString());
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.directive;
+
+import java.util.Map;
+
+import org.apache.velocity.runtime.RuntimeConstants;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+public class TemplatePreloaderTest extends DirectiveTestBase {
+
+    @Rule
+    public TemporaryFolder folder_ = new TemporaryFolder();
+
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        engine_.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_PATH, folder_.getRoot().getPath());
+        engine_.setProperty(RuntimeConstants.FILE_RESOURCE_LOADER_CACHE, "true");
+        engine_.setProperty(DirectiveConstants.PRELOAD_THREADS, "2");
+    }
+
+
+    @Test
+    public void testPreload() throws Exception {
+        writeTemplate("base.vm", "#block('a')#end#import('sub/part.vm')");
+        writeTemplate("sub/part.vm", "#defvar($x, 1)$x");
+        writeTemplate("readme.txt", "#defvar()");
+        final Map<String,Exception> failures = DirectiveUtils.preloadTemplates(engine_);
+        assertTrue(failures.isEmpty());
+        assertSame(engine_.getTemplate("/sub/part.vm"), engine_.getTemplate("/sub/part.vm"));
+        assertEquals("1", parse("/sub/part.vm"));
+    }
+
+    @Test
+    public void testPreload_reportsDirectiveErrors() throws Exception {
+        writeTemplate("ok.vm", "#block('a')#end");
+        writeTemplate("defvar.vm", "#defvar($x)");
+        writeTemplate("import.vm", "#import()");
+        writeTemplate("syntax.vm", "#if(");
+        final Map<String,Exception> failures = DirectiveUtils.preloadTemplates(engine_);
+        assertEquals("[/defvar.vm, /import.vm, /syntax.vm]", failures.keySet().toString());
+    }
+
+    @Test
+    public void testPreload_suffix() throws Exception {
+        engine_.setProperty(DirectiveConstants.PRELOAD_SUFFIX, ".html");
+        writeTemplate("page.html", "#defvar()");
+        writeTemplate("page.vm", "#defvar()");
+        assertEquals("[/page.html]", DirectiveUtils.preloadTemplates(engine_).keySet().toString());
+    }
+
+    @Test
+    public void testPreload_invalidThreads() throws Exception {
+        engine_.setProperty(DirectiveConstants.PRELOAD_THREADS, "four");
+        writeTemplate("page.vm", "#block('a')#end");
+        assertTrue(DirectiveUtils.preloadTemplates(engine_).isEmpty());
+    }
+
+    @Test
+    public void testPreload_noTemplates() throws Exception {
+        assertTrue(DirectiveUtils.preloadTemplates(engine_).isEmpty());
+    }
+
+}
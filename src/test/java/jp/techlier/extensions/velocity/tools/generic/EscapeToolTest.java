@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.tools.generic;
+
+import java.io.StringWriter;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.log.NullLogChute;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+
+/**
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+public class EscapeToolTest {
+
+    private EscapeTool esc_;
+    private VelocityEngine engine_;
+    private VelocityContext context_;
+
+    @Before
+    public void setUp() throws Exception {
+        esc_ = new EscapeTool();
+        engine_ = new VelocityEngine();
+        engine_.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, NullLogChute.class.getName());
+        context_ = new VelocityContext();
+        context_.put("esc", esc_);
+    }
+
+    private String eval(final String template) throws Exception {
+        final StringWriter writer = new StringWriter();
+        engine_.evaluate(context_, writer, getClass().getName(), template);
+        return writer.toString();
+    }
+
+    @Test
+    public void testUnchanged() throws Exception {
+        final String text = "plain text";
+        assertSame(text, esc_.escapeHtml(text));
+        assertSame(text, esc_.escapeXml(text));
+        assertSame(text, esc_.escapeJavaScript(text));
+        assertEquals("1", esc_.escapeHtml(1));
+        assertNull(esc_.escapeHtml(null));
+        assertNull(esc_.quoteHtml(null));
+    }
+
+    @Test
+    public void testEscapeHtml() throws Exception {
+        context_.put("text", "<a href=\"x\">Tom & Jerry's</a>");
+        assertEquals("&lt;a href=&quot;x&quot;&gt;Tom &amp; Jerry&#39;s&lt;/a&gt;", eval("$esc.escapeHtml($text)"));
+        assertEquals("&lt;a href=&quot;x&quot;&gt;Tom &amp; Jerry&#39;s&lt;/a&gt;", esc_.escapeHtml(context_.get("text")).toString());
+        assertEquals("&lt;a href=&quot;x&quot;&gt;Tom &amp; Jerry&apos;s&lt;/a&gt;", eval("$esc.escapeXml($text)"));
+        assertEquals("<input value=\"&lt;a href=&quot;x&quot;&gt;Tom &amp; Jerry&#39;s&lt;/a&gt;\">",
+                     eval("<input value=$esc.quoteHtml($text)>"));
+    }
+
+    @Test
+    public void testEscapeJavaScript() throws Exception {
+        context_.put("text", "He said \"it's\"\n</script>\\\u2028\u0001日本語");
+        final String escaped = "He said \\\"it\\'s\\\"\\n<\\/script>\\\\\\u2028\\u0001日本語";
+        assertEquals(escaped, eval("$esc.escapeJavaScript($text)"));
+        assertEquals("\"" + escaped + "\"", eval("$esc.quoteJavaScript($text)"));
+        assertEquals("'" + escaped + "'", esc_.singleQuoteJavaScript(context_.get("text")).toString());
+    }
+
+    @Test
+    public void testQuote() throws Exception {
+        assertEquals("\"plain\"", eval("$esc.quoteHtml('plain')"));
+        assertEquals("\"plain\"", esc_.quoteXml("plain").toString());
+        assertEquals("\"null\"", esc_.quote(null));
+        assertEquals("'x'", esc_.s("x"));
+    }
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.util;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.app.VelocityEngine;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.log.NullLogChute;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+public class ByteBufferWriterTest {
+
+    /** 境界をまたぐ書き込みを試すため、小さなバッファを用いる */
+    private final ByteBufferPool pool_ = new ByteBufferPool(16, 64);
+
+    private static final String TEXT = "ascii, été, 日本語, 😀 and more ascii text";
+
+    private static byte[] bytes(final ByteBufferWriter writer) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+        return out.toByteArray();
+    }
+
+
+    @Test
+    public void testUtf8() throws Exception {
+        final ByteBufferWriter writer = new ByteBufferWriter(pool_, "UTF-8");
+        writer.write(TEXT);
+        writer.write('!');
+        writer.write(TEXT.toCharArray(), 0, 5);
+        final String expected = TEXT + "!" + TEXT.substring(0, 5);
+        assertArrayEquals(expected.getBytes("UTF-8"), bytes(writer));
+        assertEquals(expected.getBytes("UTF-8").length, writer.size());
+        assertEquals(expected, writer.toString());
+    }
+
+    @Test
+    public void testUtf8_charByChar() throws Exception {
+        final ByteBufferWriter writer = new ByteBufferWriter(pool_, "UTF-8");
+        for (int i = 0; i < TEXT.length(); i++) {
+            writer.write(TEXT, i, 1);
+        }
+        assertArrayEquals(TEXT.getBytes("UTF-8"), bytes(writer));
+    }
+
+    @Test
+    public void testUtf8_unpairedSurrogates() throws Exception {
+        final ByteBufferWriter writer = new ByteBufferWriter(pool_, "UTF-8");
+        writer.write("a\ud83db\ude00c\ud83d");
+        assertEquals("a?b?c?", writer.toString());
+    }
+
+    @Test
+    public void testOtherCharset() throws Exception {
+        final ByteBufferWriter writer = new ByteBufferWriter(pool_, "Shift_JIS");
+        final String text = "日本語のテキスト with ascii";
+        for (int i = 0; i < text.length(); i += 3) {
+            writer.write(text, i, Math.min(3, text.length() - i));
+        }
+        assertArrayEquals(text.getBytes("Shift_JIS"), bytes(writer));
+
+        final ByteBufferWriter latin1 = new ByteBufferWriter(pool_, "ISO-8859-1");
+        latin1.write("café 日 \ud83d");
+        latin1.write("\ude00");
+        assertEquals("café ? ?", latin1.toString());
+    }
+
+    @Test
+    public void testWriteToChannel() throws Exception {
+        final ByteBufferWriter writer = new ByteBufferWriter(pool_, "UTF-8");
+        writer.write(TEXT);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final WritableByteChannel channel = Channels.newChannel(out);
+        writer.writeTo(channel);
+        assertArrayEquals(TEXT.getBytes("UTF-8"), out.toByteArray());
+
+        int length = 0;
+        for (final ByteBuffer buffer: writer.toByteBuffers()) {
+            length += buffer.remaining();
+        }
+        assertEquals(TEXT.getBytes("UTF-8").length, length);
+    }
+
+    @Test
+    public void testFlushToChannel() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteBufferWriter writer = new ByteBufferWriter(pool_, "UTF-8", Channels.newChannel(out));
+        writer.write("short");
+        writer.checkpoint();
+        assertEquals(0, out.size());
+
+        writer.write(TEXT);
+        writer.checkpoint();
+        assertEquals(("short" + TEXT).getBytes("UTF-8").length, out.size());
+        // 上位サロゲートの途中で書き出しても、対は分断されない
+        writer.write(TEXT, 0, TEXT.indexOf('\ude00'));
+        writer.flush();
+        writer.write(TEXT, TEXT.indexOf('\ude00'), TEXT.length() - TEXT.indexOf('\ude00'));
+        writer.close();
+        assertArrayEquals(("short" + TEXT + TEXT).getBytes("UTF-8"), out.toByteArray());
+        assertEquals(1, writer.toByteBuffers().length);
+        writer.release();
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        final ByteBufferWriter writer = new ByteBufferWriter(pool_, "UTF-8");
+        writer.write(TEXT);
+        final int chunks = writer.toByteBuffers().length;
+        assertEquals(0, pool_.size());
+        writer.release();
+        assertEquals(chunks, pool_.size());
+        assertEquals(0, writer.size());
+
+        writer.write("reused");
+        assertEquals("reused", writer.toString());
+        assertEquals(chunks - 1, pool_.size());
+    }
+
+    @Test
+    public void testPoolLimit() throws Exception {
+        final ByteBufferPool pool = new ByteBufferPool(16, 2);
+        final ByteBufferWriter writer = new ByteBufferWriter(pool, "UTF-8");
+        writer.write(TEXT);
+        writer.release();
+        assertEquals(2, pool.size());
+        pool.release(ByteBuffer.allocate(32));
+        assertEquals(2, pool.size());
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        final VelocityEngine engine = new VelocityEngine();
+        engine.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, NullLogChute.class.getName());
+        engine.init();
+        final VelocityContext context = new VelocityContext();
+        context.put("text", TEXT);
+        final ByteBufferWriter writer = new ByteBufferWriter(pool_, "UTF-8");
+        engine.evaluate(context, writer, "test", "#foreach($i in [1..3])$text#end");
+        assertEquals(TEXT + TEXT + TEXT, writer.toString());
+        writer.release();
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+
+/**
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+public class ReflectUtilsTest {
+
+    static class Target {
+        private String value_ = "initial";
+
+        private Target() {
+            // only for reflection
+        }
+
+        private Target(final String value) {
+            value_ = value;
+        }
+
+        private String concat(final String suffix) {
+            return value_ + suffix;
+        }
+
+        private void fail() throws java.io.IOException {
+            throw new java.io.IOException("failed");
+        }
+    }
+
+    @Test
+    public void testField() throws Exception {
+        final Target target = ReflectUtils.newInstance(Target.class);
+        assertEquals("initial", ReflectUtils.get(target, "value_"));
+        ReflectUtils.set(target, "value_", "changed");
+        assertEquals("changed", ReflectUtils.get(target, "value_"));
+    }
+
+    @Test
+    public void testAccessibilityOfGivenMember() throws Exception {
+        final Target target = ReflectUtils.newInstance(Target.class);
+        final Field field = Target.class.getDeclaredField("value_");
+        ReflectUtils.set(target, field, "changed");
+        assertEquals("changed", ReflectUtils.get(target, field));
+        assertFalse(field.isAccessible());
+
+        final Method method = Target.class.getDeclaredMethod("concat", String.class);
+        assertEquals("changed!", ReflectUtils.invoke(target, method, "!"));
+        assertFalse(method.isAccessible());
+    }
+
+    @Test
+    public void testInvoke() throws Exception {
+        final Target target = ReflectUtils.newInstance(Target.class, new Class<?>[] { String.class }, "value");
+        assertEquals("value!", ReflectUtils.invoke(target, "concat", "!"));
+        assertEquals("value?", ReflectUtils.invoke(target, "concat", "?"));
+        try {
+            ReflectUtils.invoke(target, "fail");
+            fail();
+        } catch (java.io.IOException ex) {
+            assertEquals("failed", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testNoSuchMember() throws Exception {
+        final Target target = ReflectUtils.newInstance(Target.class);
+        try {
+            ReflectUtils.get(target, "undefined");
+            fail();
+        } catch (ReflectUtilsException ex) {
+            assertEquals("No such field: " + Target.class.getName() + "#undefined", ex.getMessage());
+        }
+        try {
+            ReflectUtils.set(target, "undefined", null);
+            fail();
+        } catch (ReflectUtilsException ex) {
+            assertEquals("No such field: " + Target.class.getName() + ".undefined", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 64; i++) {
+                final String value = String.valueOf(i);
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        final Target target = ReflectUtils.newInstance(Target.class);
+                        String result = null;
+                        for (int j = 0; j < 1000; j++) {
+                            ReflectUtils.set(target, "value_", value);
+                            result = (String)ReflectUtils.get(target, "value_");
+                        }
+                        return result;
+                    }}));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertEquals(String.valueOf(i), results.get(i).get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
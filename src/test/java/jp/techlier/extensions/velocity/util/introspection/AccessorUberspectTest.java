@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2012 Techlier Inc. All rights reserved.
+ */
+package jp.techlier.extensions.velocity.util.introspection;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.apache.velocity.VelocityContext;
+import org.apache.velocity.exception.MethodInvocationException;
+import org.apache.velocity.runtime.RuntimeConstants;
+import org.apache.velocity.runtime.RuntimeInstance;
+import org.apache.velocity.runtime.log.NullLogChute;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * @author <a href="mailto:okamura@techlier.jp">Kz Okamura</a>
+ */
+public class AccessorUberspectTest {
+
+    public static class Bean {
+        private int touched_;
+
+        public String getName() { return "bean"; }
+        public boolean isActive() { return true; }
+        public long add(final int a, final int b) { return (long)a + b; }
+        public long widen(final long value) { return value; }
+        public double ratio(final double value) { return value / 2; }
+        public char initial(final String value) { return value.charAt(0); }
+        public String concat(final String a, final Object b) { return a + b; }
+        public static int twice(final int value) { return value * 2; }
+        public void touch() { touched_++; }
+        public int getTouched() { return touched_; }
+        public String fail() throws IOException { throw new IOException("failed"); }
+    }
+
+    public interface Named {
+        String getName();
+    }
+
+    static class HiddenBean implements Named {
+        @Override
+        public String getName() { return "hidden"; }
+    }
+
+    private RuntimeInstance runtime_;
+    private VelocityContext context_;
+
+    @Before
+    public void setUp() throws Exception {
+        runtime_ = new RuntimeInstance();
+        runtime_.setProperty(RuntimeConstants.RUNTIME_LOG_LOGSYSTEM_CLASS, NullLogChute.class.getName());
+        runtime_.setProperty(RuntimeConstants.UBERSPECT_CLASSNAME, AccessorUberspect.class.getName());
+        runtime_.setProperty(AccessorUberspect.ACCESSOR_THRESHOLD, "2");
+        context_ = new VelocityContext();
+        context_.put("bean", new Bean());
+        context_.put("hidden", new HiddenBean());
+    }
+
+    private String eval(final String template) throws Exception {
+        final StringWriter writer = new StringWriter();
+        runtime_.evaluate(context_, writer, getClass().getName(), template);
+        return writer.toString();
+    }
+
+    private String repeat(final String template) {
+        return "#foreach($i in [1..5])" + template + "|#end";
+    }
+
+    private AccessorUberspect.Site getSite(final String name, final Class<?>... parameterTypes) throws Exception {
+        final AccessorUberspect uberspect = (AccessorUberspect)runtime_.getUberspect();
+        return uberspect.getSite(Bean.class.getMethod(name, parameterTypes));
+    }
+
+    @Test
+    public void testProperty() throws Exception {
+        assertEquals("bean true|bean true|bean true|bean true|bean true|",
+                     eval(repeat("$bean.name $bean.active")));
+        assertTrue(getSite("getName").hasAccessor());
+        assertTrue(getSite("isActive").hasAccessor());
+    }
+
+    @Test
+    public void testMethod() throws Exception {
+        assertEquals("6 1.5 a x1 null1 8|6 1.5 a x1 null1 8|6 1.5 a x1 null1 8|6 1.5 a x1 null1 8|6 1.5 a x1 null1 8|",
+                     eval(repeat("$bean.add(2, 4) $bean.ratio(3.0) $bean.initial('abc') $bean.concat('x', 1)"
+                                 + " $bean.concat($undefined, 1) $bean.twice(4)$!bean.touch()")));
+        assertEquals(5, ((Bean)context_.get("bean")).getTouched());
+        assertTrue(getSite("add", int.class, int.class).hasAccessor());
+        assertTrue(getSite("ratio", double.class).hasAccessor());
+        assertTrue(getSite("initial", String.class).hasAccessor());
+        assertTrue(getSite("twice", int.class).hasAccessor());
+        assertTrue(getSite("touch").hasAccessor());
+    }
+
+    @Test
+    public void testArgumentMismatch() throws Exception {
+        // an Integer for the long parameter is converted by reflection
+        assertEquals("3|3|3|3|3|", eval(repeat("$bean.widen(3)")));
+        assertTrue(getSite("widen", long.class).hasAccessor());
+    }
+
+    @Test
+    public void testException() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            try {
+                eval("$bean.fail()");
+                fail();
+            } catch (MethodInvocationException ex) {
+                assertTrue(ex.getWrappedThrowable() instanceof IOException);
+            }
+        }
+        assertTrue(getSite("fail").hasAccessor());
+    }
+
+    @Test
+    public void testInterface() throws Exception {
+        // the class is not public, so the method is called through the public interface
+        assertEquals("hidden|hidden|hidden|hidden|hidden|", eval(repeat("$hidden.name")));
+        final AccessorUberspect uberspect = (AccessorUberspect)runtime_.getUberspect();
+        assertTrue(uberspect.getSite(Named.class.getMethod("getName")).hasAccessor());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        runtime_.setProperty(AccessorUberspect.ACCESSOR_ENABLED, "false");
+        assertEquals("bean 6|bean 6|bean 6|bean 6|bean 6|", eval(repeat("$bean.name $bean.add(2, 4)")));
+        assertFalse(getSite("getName").hasAccessor());
+    }
+
+}